@@ -0,0 +1,19 @@
+package com.binaryorder.embeddedpc.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks in this package with the GC profiler, which adds the allocation rate per operation to the
+ * results. Further JMH command line options are passed through, e.g. "-f 3" or a benchmark name pattern.
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws Exception {
+		Options commandLine = new CommandLineOptions(args);
+		Options options = new OptionsBuilder().parent(commandLine).include(Benchmarks.class.getPackage().getName() + ".*").addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
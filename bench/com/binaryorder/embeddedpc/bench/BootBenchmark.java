@@ -0,0 +1,132 @@
+package com.binaryorder.embeddedpc.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jpc.emulator.processor.Processor;
+import org.jpc.j2se.VirtualClock;
+import org.jpc.test.Checkpoint;
+import org.jpc.test.CheckpointCallback;
+import org.jpc.test.CheckpointProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.binaryorder.embeddedpc.pc.IbmPC;
+
+/**
+ * Machine construction and the time from reset to the end of POST.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BootBenchmark {
+	static final String[] ARGS = new String[] { "-fda", "mem:odin070.img", "-boot", "fda" };
+
+	// TEST 16x, the last POST step before the BIOS looks for a boot device
+	static final int POST_FINISHED = 0xFE55E;
+	static final int SLICE = 100 * 1000;
+	static final long MAX_POST_INSTRUCTIONS = 500L * 1000 * 1000;
+
+	static IbmPC createPC() throws IOException {
+		IbmPC pc = IbmPC.createPC(ARGS, new VirtualClock());
+		pc.getScheduler().setFixedBudget(SLICE);
+		return pc;
+	}
+
+	/**
+	 * Discards System.out for the trial. Construction, reset and POST print the I/O port map, the font and more, and
+	 * the console output would otherwise be measured along with the emulator.
+	 */
+	@State(Scope.Thread)
+	public static class Quiet {
+		private PrintStream console;
+
+		@Setup(Level.Trial)
+		public void silence() {
+			console = System.out;
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) {
+				}
+
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+		}
+
+		@TearDown(Level.Trial)
+		public void restore() {
+			System.setOut(console);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Machine {
+		IbmPC pc;
+		volatile boolean postFinished;
+
+		@Setup(Level.Trial)
+		public void create() throws IOException {
+			pc = createPC();
+			// only this one checkpoint, and a repeating one, since every invocation passes it again
+			List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+			checkpoints.add(new Checkpoint(POST_FINISHED, new CheckpointCallback() {
+				public void checkpointPassed(Processor cpu) {
+					postFinished = true;
+				}
+			}, true));
+			CheckpointProcessor.setCheckpoints(checkpoints, true);
+		}
+
+		@TearDown(Level.Trial)
+		public void dispose() {
+			pc.dispose();
+		}
+
+		/**
+		 * Executes from the current state until POST is done and returns the instruction count. Fails if the
+		 * checkpoint is not passed, rather than measuring a run that never ends.
+		 */
+		long runPOST() {
+			postFinished = false;
+			long count = 0;
+			pc.start();
+			try {
+				while(!postFinished) {
+					count += pc.execute();
+					if(count > MAX_POST_INSTRUCTIONS)
+						throw new IllegalStateException("POST did not finish after " + count + " instructions");
+				}
+			} finally {
+				pc.stop();
+			}
+			return count;
+		}
+	}
+
+	@Benchmark
+	public IbmPC construct(Quiet quiet) throws IOException {
+		return createPC();
+	}
+
+	@Benchmark
+	public long resetToPOST(Machine machine, Quiet quiet) {
+		machine.pc.reset();
+		return machine.runPOST();
+	}
+}
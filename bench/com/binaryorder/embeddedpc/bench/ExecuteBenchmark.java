@@ -0,0 +1,60 @@
+package com.binaryorder.embeddedpc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Steady-state IbmPC.execute() on the odin070 floppy, after POST has finished. The instructions counter reports
+ * emulated instructions per second next to the execute() calls per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExecuteBenchmark {
+	@State(Scope.Thread)
+	public static class Booted extends BootBenchmark.Machine {
+		@Setup(Level.Trial)
+		public void boot() {
+			runPOST();
+			pc.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void halt() {
+			pc.stop();
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long instructions;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			instructions = 0;
+		}
+	}
+
+	@Benchmark
+	public int execute(Booted machine, Counters counters, BootBenchmark.Quiet quiet) {
+		int count = machine.pc.execute();
+		counters.instructions += count;
+		return count;
+	}
+}
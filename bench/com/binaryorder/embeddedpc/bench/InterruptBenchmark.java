@@ -0,0 +1,71 @@
+package com.binaryorder.embeddedpc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jpc.emulator.processor.Processor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.binaryorder.embeddedpc.emulator.motherboard.CascadedInterruptController;
+import com.binaryorder.embeddedpc.emulator.motherboard.SingleInterruptController;
+
+/**
+ * One IRQ from request to end of interrupt: setIRQ, cpuGetInterrupt, line low again and EOI. The timer IRQ on the
+ * single controller is the EC-1840 case and should not get slower when the cascaded controller changes; run with
+ * <code>-p type=single</code> on both trees to compare a change against its parent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class InterruptBenchmark {
+	@State(Scope.Thread)
+	public static class Controller {
+		@Param({ "single", "metrics", "cascaded" })
+		public String type;
+
+		SingleInterruptController pic;
+
+		@Setup(Level.Trial)
+		public void create() {
+			pic = "cascaded".equals(type) ? new CascadedInterruptController() : new SingleInterruptController();
+			pic.acceptComponent(new Processor());
+			// the single controller as it runs with ec1840.irqmetrics set
+			pic.setMetricsEnabled("metrics".equals(type));
+			// edge triggered, vectors at 08h and 70h, 8086 mode; the single controller has no ICW3
+			pic.ioPortWriteByte(0x20, "cascaded".equals(type) ? 0x11 : 0x13);
+			pic.ioPortWriteByte(0x21, 0x08);
+			if("cascaded".equals(type)) {
+				pic.ioPortWriteByte(0x21, 0x04);
+				pic.ioPortWriteByte(0xa0, 0x11);
+				pic.ioPortWriteByte(0xa1, 0x70);
+				pic.ioPortWriteByte(0xa1, 0x02);
+				pic.ioPortWriteByte(0xa1, 0x01);
+				pic.ioPortWriteByte(0xa1, 0x00);
+			}
+			pic.ioPortWriteByte(0x21, 0x01);
+			pic.ioPortWriteByte(0x21, 0x00);
+		}
+	}
+
+	@Benchmark
+	public int timerIRQ(Controller controller) {
+		SingleInterruptController pic = controller.pic;
+		pic.setIRQ(0, 1);
+		int vector = pic.cpuGetInterrupt();
+		pic.setIRQ(0, 0);
+		pic.ioPortWriteByte(0x20, 0x20);
+		return vector;
+	}
+}
@@ -0,0 +1,79 @@
+package com.binaryorder.embeddedpc.emulator.memory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jpc.emulator.memory.LazyMemory;
+import org.jpc.emulator.memory.Memory;
+import org.jpc.emulator.memory.codeblock.CodeBlock;
+import org.jpc.emulator.processor.Processor;
+
+/**
+ * Memory block that can share its contents with blocks of other machines until one of them writes.
+ *
+ * Reads go straight to the shared block. The first write of a sharer copies the contents into a private
+ * LazyMemory; the last remaining sharer keeps the original block. Executing counts as a write, since a block keeps
+ * the code decoded from it and that is not safe to share between threads. Sharers may run on different threads, but
+ * sharing must be set up while none of the machines involved is executing.
+ */
+public class CopyOnWriteMemory extends ForwardingMemory {
+	private AtomicInteger sharers;
+
+	public CopyOnWriteMemory(Memory target) {
+		this(target, null);
+	}
+
+	private CopyOnWriteMemory(Memory target, AtomicInteger sharers) {
+		super(target);
+		this.sharers = sharers;
+	}
+
+	/**
+	 * Returns a new block sharing the current contents of this one.
+	 */
+	public synchronized CopyOnWriteMemory share() {
+		if(sharers == null)
+			sharers = new AtomicInteger(1);
+		sharers.incrementAndGet();
+		return new CopyOnWriteMemory(target, sharers);
+	}
+
+	public boolean isShared() {
+		return sharers != null;
+	}
+
+	protected void beforeWrite() {
+		if(sharers != null)
+			unshare();
+	}
+
+	public int execute(Processor cpu, int offset) {
+		if(sharers != null)
+			unshare();
+		return target.execute(cpu, offset);
+	}
+
+	public CodeBlock decodeCodeBlockAt(Processor cpu, int offset) {
+		if(sharers != null)
+			unshare();
+		return target.decodeCodeBlockAt(cpu, offset);
+	}
+
+	private void unshare() {
+		// every sharer locks the same counter, so the last one cannot write to the block while another copies it
+		synchronized(sharers) {
+			if(sharers.decrementAndGet() > 0) {
+				int size = (int) target.getSize();
+				byte[] data = new byte[size];
+				target.copyContentsInto(0, data, 0, size);
+				Memory copy = new LazyMemory(size);
+				copy.copyContentsFrom(0, data, 0, size);
+				target = copy;
+			}
+		}
+		sharers = null;
+	}
+
+	public String toString() {
+		return "Copy-on-write " + target + (sharers != null ? " (shared)" : "");
+	}
+}
@@ -0,0 +1,30 @@
+package com.binaryorder.embeddedpc.emulator.memory;
+
+import org.jpc.emulator.memory.Memory;
+
+/**
+ * Memory block that remembers whether it has been written to since the last call to {@link #clean()}.
+ */
+public class DirtyTrackingMemory extends ForwardingMemory {
+	private boolean dirty;
+
+	public DirtyTrackingMemory(Memory target) {
+		super(target);
+	}
+
+	protected void beforeWrite() {
+		dirty = true;
+	}
+
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	public void clean() {
+		dirty = false;
+	}
+
+	public String toString() {
+		return "Dirty tracking " + target + (dirty ? " (dirty)" : "");
+	}
+}
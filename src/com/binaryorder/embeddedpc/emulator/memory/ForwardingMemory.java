@@ -0,0 +1,124 @@
+package com.binaryorder.embeddedpc.emulator.memory;
+
+import org.jpc.emulator.memory.Memory;
+import org.jpc.emulator.memory.codeblock.CodeBlock;
+import org.jpc.emulator.processor.Processor;
+
+/**
+ * Memory block that forwards every access to another block. Subclasses are told about each write before it
+ * happens.
+ */
+public abstract class ForwardingMemory extends Memory {
+	protected Memory target;
+
+	protected ForwardingMemory(Memory target) {
+		this.target = target;
+	}
+
+	public Memory getTarget() {
+		return target;
+	}
+
+	public void setTarget(Memory target) {
+		this.target = target;
+	}
+
+	protected abstract void beforeWrite();
+
+	public boolean isCacheable() {
+		return target.isCacheable();
+	}
+
+	public boolean isVolatile() {
+		return target.isVolatile();
+	}
+
+	public boolean isAllocated() {
+		return target.isAllocated();
+	}
+
+	public long getSize() {
+		return target.getSize();
+	}
+
+	public void copyContentsInto(int address, byte[] buffer, int off, int len) {
+		target.copyContentsInto(address, buffer, off, len);
+	}
+
+	public void copyContentsFrom(int address, byte[] buffer, int off, int len) {
+		beforeWrite();
+		target.copyContentsFrom(address, buffer, off, len);
+	}
+
+	public byte getByte(int offset) {
+		return target.getByte(offset);
+	}
+
+	public short getWord(int offset) {
+		return target.getWord(offset);
+	}
+
+	public int getDoubleWord(int offset) {
+		return target.getDoubleWord(offset);
+	}
+
+	public long getQuadWord(int offset) {
+		return target.getQuadWord(offset);
+	}
+
+	public long getLowerDoubleQuadWord(int offset) {
+		return target.getLowerDoubleQuadWord(offset);
+	}
+
+	public long getUpperDoubleQuadWord(int offset) {
+		return target.getUpperDoubleQuadWord(offset);
+	}
+
+	public void setByte(int offset, byte data) {
+		beforeWrite();
+		target.setByte(offset, data);
+	}
+
+	public void setWord(int offset, short data) {
+		beforeWrite();
+		target.setWord(offset, data);
+	}
+
+	public void setDoubleWord(int offset, int data) {
+		beforeWrite();
+		target.setDoubleWord(offset, data);
+	}
+
+	public void setQuadWord(int offset, long data) {
+		beforeWrite();
+		target.setQuadWord(offset, data);
+	}
+
+	public void setLowerDoubleQuadWord(int offset, long data) {
+		beforeWrite();
+		target.setLowerDoubleQuadWord(offset, data);
+	}
+
+	public void setUpperDoubleQuadWord(int offset, long data) {
+		beforeWrite();
+		target.setUpperDoubleQuadWord(offset, data);
+	}
+
+	public void clear() {
+		beforeWrite();
+		target.clear();
+	}
+
+	public void clear(int start, int length) {
+		beforeWrite();
+		target.clear(start, length);
+	}
+
+	public int execute(Processor cpu, int offset) {
+		return target.execute(cpu, offset);
+	}
+
+	public CodeBlock decodeCodeBlockAt(Processor cpu, int offset) {
+		return target.decodeCodeBlockAt(cpu, offset);
+	}
+}
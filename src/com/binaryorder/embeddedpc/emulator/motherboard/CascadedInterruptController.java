@@ -0,0 +1,115 @@
+package com.binaryorder.embeddedpc.emulator.motherboard;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A master and a slave i8259, with the slave on master IRQ 2 as on the PC/AT. IRQs 8 to 15 go to the slave at
+ * 0xa0/0xa1, whose edge/level register is at 0x4d1.
+ *
+ * The EC-1840 has a single controller and keeps using SingleInterruptController. The cascade lives in this subclass
+ * so that the single controller's paths are left as they are.
+ */
+public class CascadedInterruptController extends SingleInterruptController {
+	private static final int CASCADE_IRQ = 2;
+
+	private InterruptControllerElement slave;
+
+	public CascadedInterruptController() {
+		slave = new InterruptControllerElement(false);
+	}
+
+	public void dumpState(DataOutput output) throws IOException {
+		super.dumpState(output);
+		slave.dumpState(output);
+	}
+
+	public void loadState(DataInput input) throws IOException {
+		super.loadState(input);
+		slave.loadState(input);
+	}
+
+	void updateIRQ() {
+		/* a request on the slave is an edge on the cascade line of the master */
+		if(slave.getIRQ() >= 0) {
+			master.setIRQ(CASCADE_IRQ, 1);
+			master.setIRQ(CASCADE_IRQ, 0);
+		}
+		super.updateIRQ();
+	}
+
+	public void setIRQ(int irqNumber, int level) {
+		if((irqNumber >>> 3) == 1) {
+			slave.setIRQ(irqNumber & 7, level);
+			this.updateIRQ();
+		} else
+			super.setIRQ(irqNumber, level);
+	}
+
+	public int cpuGetInterrupt() {
+		if(master.getIRQ() != CASCADE_IRQ)
+			return super.cpuGetInterrupt();
+
+		// the CPU drops INTR itself when it takes the interrupt
+		cpuLineRaised = false;
+		master.intAck(CASCADE_IRQ);
+		int slaveIRQ = slave.getIRQ();
+		if(slaveIRQ >= 0) {
+			slave.intAck(slaveIRQ);
+		} else {
+			/* spurious IRQ on slave controller */
+			slaveIRQ = 7;
+			if(metrics != null)
+				metrics.spurious(8 + slaveIRQ);
+		}
+		this.updateIRQ();
+		return slave.irqBase + slaveIRQ;
+	}
+
+	public int[] ioPortsRequested() {
+		int[] masterIOPorts = super.ioPortsRequested();
+		int[] slaveIOPorts = slave.ioPortsRequested();
+
+		int[] temp = new int[masterIOPorts.length + slaveIOPorts.length];
+		System.arraycopy(masterIOPorts, 0, temp, 0, masterIOPorts.length);
+		System.arraycopy(slaveIOPorts, 0, temp, masterIOPorts.length, slaveIOPorts.length);
+		return temp;
+	}
+
+	public int ioPortReadByte(int address) {
+		switch(address) {
+		case 0xa0:
+		case 0xa1:
+			return 0xff & slave.ioPortRead(address);
+		case 0x4d1:
+			return 0xff & slave.elcrRead();
+		default:
+			return super.ioPortReadByte(address);
+		}
+	}
+
+	public void ioPortWriteByte(int address, int data) {
+		switch(address) {
+		case 0xa0:
+		case 0xa1:
+			if(slave.ioPortWrite(address, (byte) data))
+				this.updateIRQ();
+			break;
+		case 0x4d1:
+			slave.elcrWrite((byte) data);
+			break;
+		default:
+			super.ioPortWriteByte(address, data);
+		}
+	}
+
+	public void reset() {
+		super.reset();
+		slave.reset();
+	}
+
+	public String toString() {
+		return "Intel i8259 Programmable Interrupt Controller (cascaded)";
+	}
+}
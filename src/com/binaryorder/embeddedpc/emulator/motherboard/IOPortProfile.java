@@ -0,0 +1,155 @@
+package com.binaryorder.embeddedpc.emulator.motherboard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The counters of a {@link ProfilingIOPortHandler} copied at one point in time.
+ *
+ * A snapshot does not change any more, so it can be looked at from any thread. The difference of two snapshots
+ * taken a while apart, see {@link #since(IOPortProfile)}, is the histogram of the accesses in that interval, which is
+ * what a live view of the hot ports needs. The profiles of several machines can be added up with
+ * {@link #plus(IOPortProfile)}.
+ */
+public class IOPortProfile {
+	static final int PORT_COUNT = 0x10000;
+
+	// reads, writes and estimated nanoseconds
+	private static final int COUNTERS = 3;
+
+	private final long[] reads;
+	private final long[] writes;
+	private final long[] nanos;
+	// device name to its counters, in registration order
+	private final Map<String, long[]> devices;
+
+	IOPortProfile(long[] reads, long[] writes, long[] nanos, Map<String, long[]> devices) {
+		this.reads = reads;
+		this.writes = writes;
+		this.nanos = nanos;
+		this.devices = devices;
+	}
+
+	public long getReads(int port) {
+		return reads[port & 0xffff];
+	}
+
+	public long getWrites(int port) {
+		return writes[port & 0xffff];
+	}
+
+	/**
+	 * Estimated nanoseconds spent in the handler of the given port.
+	 */
+	public long getNanos(int port) {
+		return nanos[port & 0xffff];
+	}
+
+	/**
+	 * Returns the ports with at least one access, busiest first.
+	 */
+	public int[] getHotPorts() {
+		List<Integer> ports = new ArrayList<Integer>();
+		for(int i = 0; i < PORT_COUNT; i++) {
+			if(reads[i] + writes[i] > 0)
+				ports.add(Integer.valueOf(i));
+		}
+		Collections.sort(ports, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long countA = reads[a.intValue()] + writes[a.intValue()];
+				long countB = reads[b.intValue()] + writes[b.intValue()];
+				return countA > countB ? -1 : (countA < countB ? 1 : 0);
+			}
+		});
+
+		int[] result = new int[ports.size()];
+		for(int i = 0; i < result.length; i++)
+			result[i] = ports.get(i).intValue();
+		return result;
+	}
+
+	public List<String> getDevices() {
+		return new ArrayList<String>(devices.keySet());
+	}
+
+	public long getDeviceReads(String device) {
+		long[] counters = devices.get(device);
+		return (counters == null) ? 0 : counters[0];
+	}
+
+	public long getDeviceWrites(String device) {
+		long[] counters = devices.get(device);
+		return (counters == null) ? 0 : counters[1];
+	}
+
+	public long getDeviceNanos(String device) {
+		long[] counters = devices.get(device);
+		return (counters == null) ? 0 : counters[2];
+	}
+
+	/**
+	 * Returns what happened between <code>earlier</code>, a snapshot of the same handler, and this one.
+	 */
+	public IOPortProfile since(IOPortProfile earlier) {
+		return combine(earlier, -1);
+	}
+
+	/**
+	 * Returns the sum of this profile and <code>other</code>, typically the profile of another machine. Devices are
+	 * matched by name.
+	 */
+	public IOPortProfile plus(IOPortProfile other) {
+		return combine(other, 1);
+	}
+
+	private IOPortProfile combine(IOPortProfile other, int sign) {
+		long[] newReads = new long[PORT_COUNT];
+		long[] newWrites = new long[PORT_COUNT];
+		long[] newNanos = new long[PORT_COUNT];
+		for(int i = 0; i < PORT_COUNT; i++) {
+			newReads[i] = reads[i] + sign * other.reads[i];
+			newWrites[i] = writes[i] + sign * other.writes[i];
+			newNanos[i] = nanos[i] + sign * other.nanos[i];
+		}
+
+		Map<String, long[]> newDevices = new LinkedHashMap<String, long[]>();
+		for(Map.Entry<String, long[]> entry : devices.entrySet())
+			newDevices.put(entry.getKey(), entry.getValue().clone());
+		for(Map.Entry<String, long[]> entry : other.devices.entrySet()) {
+			long[] counters = newDevices.get(entry.getKey());
+			if(counters == null) {
+				counters = new long[COUNTERS];
+				newDevices.put(entry.getKey(), counters);
+			}
+			for(int i = 0; i < COUNTERS; i++)
+				counters[i] += sign * entry.getValue()[i];
+		}
+		return new IOPortProfile(newReads, newWrites, newNanos, newDevices);
+	}
+
+	public String report() {
+		StringBuilder out = new StringBuilder();
+		out.append("I/O ports (busiest first)\n");
+		out.append("port        reads       writes      est. ms\n");
+		for(int port : getHotPorts()) {
+			out.append(String.format("%04x %12d %12d %12.3f\n", Integer.valueOf(port), Long.valueOf(reads[port]), Long.valueOf(writes[port]),
+					Double.valueOf(nanos[port] / 1000000.0)));
+		}
+
+		out.append("I/O devices\n");
+		for(Map.Entry<String, long[]> entry : devices.entrySet()) {
+			long[] counters = entry.getValue();
+			out.append(String.format("%12d %12d %12.3f  %s\n", Long.valueOf(counters[0]), Long.valueOf(counters[1]),
+					Double.valueOf(counters[2] / 1000000.0), entry.getKey()));
+		}
+		return out.toString();
+	}
+
+	public String toString() {
+		return report();
+	}
+}
@@ -0,0 +1,168 @@
+package com.binaryorder.embeddedpc.emulator.motherboard;
+
+/**
+ * Per IRQ line counts of what the interrupt controller did, and how long requests waited for the CPU.
+ *
+ * A request is a line going from low to high; one that arrives while the line is masked in IMR is also counted as
+ * a masked drop. The latency of a request is the emulated time, in clock ticks, from the IRR bit being set to the
+ * acknowledge by cpuGetInterrupt or a poll. It is collected in a histogram with power of two buckets. The controller
+ * updates the live counters from the emulation thread only; other threads should look at a {@link #snapshot()}.
+ */
+public class InterruptMetrics {
+	public static final int LINES = 16;
+	// bucket 0 holds waits of no ticks, bucket i > 0 waits from 2^(i-1) up to 2^i - 1 ticks; the last one is open
+	public static final int LATENCY_BUCKETS = 40;
+
+	private final long[] requests = new long[LINES];
+	private final long[] acks = new long[LINES];
+	private final long[] eois = new long[LINES];
+	private final long[] maskedDrops = new long[LINES];
+	private final long[] spurious = new long[LINES];
+	private final long[] latencyTicks = new long[LINES];
+	private final long[] latencySamples = new long[LINES];
+	private final long[] latencyHistogram = new long[LATENCY_BUCKETS];
+	// time the IRR bit of each line was set, or -1
+	private final long[] requestTime = new long[LINES];
+
+	InterruptMetrics() {
+		clear();
+	}
+
+	private InterruptMetrics(InterruptMetrics source) {
+		System.arraycopy(source.requests, 0, requests, 0, LINES);
+		System.arraycopy(source.acks, 0, acks, 0, LINES);
+		System.arraycopy(source.eois, 0, eois, 0, LINES);
+		System.arraycopy(source.maskedDrops, 0, maskedDrops, 0, LINES);
+		System.arraycopy(source.spurious, 0, spurious, 0, LINES);
+		System.arraycopy(source.latencyTicks, 0, latencyTicks, 0, LINES);
+		System.arraycopy(source.latencySamples, 0, latencySamples, 0, LINES);
+		System.arraycopy(source.latencyHistogram, 0, latencyHistogram, 0, LATENCY_BUCKETS);
+		System.arraycopy(source.requestTime, 0, requestTime, 0, LINES);
+	}
+
+	/**
+	 * Returns a copy of the current figures that is not updated any further.
+	 */
+	public InterruptMetrics snapshot() {
+		return new InterruptMetrics(this);
+	}
+
+	void clear() {
+		for(int i = 0; i < LINES; i++) {
+			requests[i] = 0;
+			acks[i] = 0;
+			eois[i] = 0;
+			maskedDrops[i] = 0;
+			spurious[i] = 0;
+			latencyTicks[i] = 0;
+			latencySamples[i] = 0;
+			requestTime[i] = -1;
+		}
+		for(int i = 0; i < LATENCY_BUCKETS; i++)
+			latencyHistogram[i] = 0;
+	}
+
+	void requested(int line, boolean masked, long time) {
+		requests[line]++;
+		if(masked)
+			maskedDrops[line]++;
+		if(requestTime[line] < 0)
+			requestTime[line] = time;
+	}
+
+	void acknowledged(int line, long time) {
+		acks[line]++;
+		long start = requestTime[line];
+		if(start < 0)
+			return;
+		requestTime[line] = -1;
+
+		long ticks = Math.max(0, time - start);
+		latencyTicks[line] += ticks;
+		latencySamples[line]++;
+		latencyHistogram[getBucket(ticks)]++;
+	}
+
+	void endOfInterrupt(int line) {
+		eois[line]++;
+	}
+
+	void spurious(int line) {
+		spurious[line]++;
+	}
+
+	static int getBucket(long ticks) {
+		return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ticks));
+	}
+
+	/**
+	 * Smallest latency in clock ticks that falls into the given bucket.
+	 */
+	public static long getBucketStart(int bucket) {
+		return (bucket == 0) ? 0 : 1L << (bucket - 1);
+	}
+
+	public long getRequests(int line) {
+		return requests[line];
+	}
+
+	public long getAcks(int line) {
+		return acks[line];
+	}
+
+	public long getEOIs(int line) {
+		return eois[line];
+	}
+
+	public long getMaskedDrops(int line) {
+		return maskedDrops[line];
+	}
+
+	/**
+	 * Acknowledges answered with IRQ 7 on the given line (7 or 15) because nothing was pending any more.
+	 */
+	public long getSpuriousIRQs(int line) {
+		return spurious[line];
+	}
+
+	public long getSpuriousIRQs() {
+		long total = 0;
+		for(int i = 0; i < LINES; i++)
+			total += spurious[i];
+		return total;
+	}
+
+	/**
+	 * Mean latency of the line in clock ticks, or 0 before the first acknowledge.
+	 */
+	public double getMeanLatency(int line) {
+		if(latencySamples[line] == 0)
+			return 0;
+		return (double) latencyTicks[line] / latencySamples[line];
+	}
+
+	public long[] getLatencyHistogram() {
+		long[] result = new long[LATENCY_BUCKETS];
+		System.arraycopy(latencyHistogram, 0, result, 0, LATENCY_BUCKETS);
+		return result;
+	}
+
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		out.append("IRQ     requests         acks         EOIs       masked     spurious  mean ticks\n");
+		for(int line = 0; line < LINES; line++) {
+			if(requests[line] + acks[line] + eois[line] + spurious[line] == 0)
+				continue;
+			out.append(String.format("%3d %12d %12d %12d %12d %12d %11.1f\n", Integer.valueOf(line), Long.valueOf(requests[line]),
+					Long.valueOf(acks[line]), Long.valueOf(eois[line]), Long.valueOf(maskedDrops[line]), Long.valueOf(spurious[line]),
+					Double.valueOf(getMeanLatency(line))));
+		}
+
+		out.append("latency (ticks)        count\n");
+		for(int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+			if(latencyHistogram[bucket] != 0)
+				out.append(String.format(">= %-16d %10d\n", Long.valueOf(getBucketStart(bucket)), Long.valueOf(latencyHistogram[bucket])));
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,261 @@
+package com.binaryorder.embeddedpc.emulator.motherboard;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jpc.emulator.HardwareComponent;
+import org.jpc.emulator.motherboard.IOPortCapable;
+import org.jpc.emulator.motherboard.IOPortHandler;
+
+/**
+ * IOPortHandler that counts the reads and writes of every port and device, and times a sample of the accesses.
+ *
+ * Each registered device is wrapped before it is handed to the real handler. Every access is counted; the first and
+ * then every SAMPLE_INTERVAL-th access of each port is timed with System.nanoTime and the total time of the port is
+ * extrapolated from those samples. Counting down per port keeps ports that are used in turn, like an index and a
+ * data register, from all landing their samples on one of them. The counters are plain arrays written by the emulation thread, so the live figures read from other
+ * threads may lag slightly behind; {@link #snapshot()} takes a copy to work with.
+ */
+public class ProfilingIOPortHandler extends IOPortHandler {
+	private static final int PORT_COUNT = IOPortProfile.PORT_COUNT;
+	private static final int SAMPLE_INTERVAL = 16;
+
+	private final long[] reads = new long[PORT_COUNT];
+	private final long[] writes = new long[PORT_COUNT];
+	private final long[] sampledNanos = new long[PORT_COUNT];
+	private final long[] samples = new long[PORT_COUNT];
+	private final int[] sampleCountdown = new int[PORT_COUNT];
+
+	// devices by identity, so that two of the same kind are never merged, and in registration order for the reports
+	private final Map<IOPortCapable, ProfiledDevice> devices = new IdentityHashMap<IOPortCapable, ProfiledDevice>();
+	private final List<ProfiledDevice> deviceOrder = new ArrayList<ProfiledDevice>();
+
+	public void registerIOPortCapable(IOPortCapable device) {
+		if(device instanceof ProfiledDevice) {
+			super.registerIOPortCapable(device);
+			return;
+		}
+
+		ProfiledDevice wrapper;
+		synchronized(devices) {
+			wrapper = devices.get(device);
+			if(wrapper == null) {
+				wrapper = new ProfiledDevice(device);
+				devices.put(device, wrapper);
+				deviceOrder.add(wrapper);
+			}
+		}
+		super.registerIOPortCapable(wrapper);
+	}
+
+	public long getReads(int port) {
+		return reads[port & 0xffff];
+	}
+
+	public long getWrites(int port) {
+		return writes[port & 0xffff];
+	}
+
+	/**
+	 * Estimated nanoseconds spent in the handler of the given port.
+	 */
+	public long getNanos(int port) {
+		port &= 0xffff;
+		if(samples[port] == 0)
+			return 0;
+		return sampledNanos[port] * (reads[port] + writes[port]) / samples[port];
+	}
+
+	long getSamples(int port) {
+		return samples[port & 0xffff];
+	}
+
+	public void clearProfile() {
+		for(int i = 0; i < PORT_COUNT; i++) {
+			reads[i] = 0;
+			writes[i] = 0;
+			sampledNanos[i] = 0;
+			samples[i] = 0;
+			sampleCountdown[i] = 0;
+		}
+		synchronized(devices) {
+			for(ProfiledDevice device : deviceOrder) {
+				device.reads = 0;
+				device.writes = 0;
+			}
+		}
+	}
+
+	/**
+	 * Copies the counters as they are now. Comparing two snapshots shows which ports ran hot in between. Devices are
+	 * labelled with their toString; a second device with the same label gets " #2" appended, and so on.
+	 */
+	public IOPortProfile snapshot() {
+		long[] nanos = new long[PORT_COUNT];
+		for(int i = 0; i < PORT_COUNT; i++)
+			nanos[i] = getNanos(i);
+
+		Map<String, long[]> deviceCounters = new LinkedHashMap<String, long[]>();
+		synchronized(devices) {
+			for(ProfiledDevice device : deviceOrder) {
+				long deviceNanos = 0;
+				for(int port : device.ports)
+					deviceNanos += nanos[port & 0xffff];
+				String label = device.target.toString();
+				for(int n = 2; deviceCounters.containsKey(label); n++)
+					label = device.target.toString() + " #" + n;
+				deviceCounters.put(label, new long[] { device.reads, device.writes, deviceNanos });
+			}
+		}
+		return new IOPortProfile(reads.clone(), writes.clone(), nanos, deviceCounters);
+	}
+
+	public String report() {
+		return snapshot().report();
+	}
+
+	private boolean sampleNext(int port) {
+		if(--sampleCountdown[port] > 0)
+			return false;
+		sampleCountdown[port] = SAMPLE_INTERVAL;
+		return true;
+	}
+
+	private void sampled(int port, long start) {
+		sampledNanos[port] += System.nanoTime() - start;
+		samples[port]++;
+	}
+
+	private class ProfiledDevice implements IOPortCapable {
+		final IOPortCapable target;
+		int[] ports;
+		long reads, writes;
+
+		ProfiledDevice(IOPortCapable target) {
+			this.target = target;
+			ports = target.ioPortsRequested();
+		}
+
+		private int read(int address, int size) {
+			int port = address & 0xffff;
+			ProfilingIOPortHandler.this.reads[port]++;
+			reads++;
+			if(!sampleNext(port))
+				return doRead(address, size);
+
+			long start = System.nanoTime();
+			int result = doRead(address, size);
+			sampled(port, start);
+			return result;
+		}
+
+		private int doRead(int address, int size) {
+			switch(size) {
+			case 1:
+				return target.ioPortReadByte(address);
+			case 2:
+				return target.ioPortReadWord(address);
+			default:
+				return target.ioPortReadLong(address);
+			}
+		}
+
+		private void write(int address, int data, int size) {
+			int port = address & 0xffff;
+			ProfilingIOPortHandler.this.writes[port]++;
+			writes++;
+			if(!sampleNext(port)) {
+				doWrite(address, data, size);
+				return;
+			}
+
+			long start = System.nanoTime();
+			doWrite(address, data, size);
+			sampled(port, start);
+		}
+
+		private void doWrite(int address, int data, int size) {
+			switch(size) {
+			case 1:
+				target.ioPortWriteByte(address, data);
+				break;
+			case 2:
+				target.ioPortWriteWord(address, data);
+				break;
+			default:
+				target.ioPortWriteLong(address, data);
+			}
+		}
+
+		public int ioPortReadByte(int address) {
+			return read(address, 1);
+		}
+
+		public int ioPortReadWord(int address) {
+			return read(address, 2);
+		}
+
+		public int ioPortReadLong(int address) {
+			return read(address, 4);
+		}
+
+		public void ioPortWriteByte(int address, int data) {
+			write(address, data, 1);
+		}
+
+		public void ioPortWriteWord(int address, int data) {
+			write(address, data, 2);
+		}
+
+		public void ioPortWriteLong(int address, int data) {
+			write(address, data, 4);
+		}
+
+		public int[] ioPortsRequested() {
+			ports = target.ioPortsRequested();
+			return ports;
+		}
+
+		public boolean initialised() {
+			return target.initialised();
+		}
+
+		public void acceptComponent(HardwareComponent component) {
+			target.acceptComponent(component);
+		}
+
+		public void reset() {
+			target.reset();
+		}
+
+		public void timerCallback() {
+			target.timerCallback();
+		}
+
+		public boolean updated() {
+			return target.updated();
+		}
+
+		public void updateComponent(HardwareComponent component) {
+			target.updateComponent(component);
+		}
+
+		public void dumpState(DataOutput output) throws IOException {
+			target.dumpState(output);
+		}
+
+		public void loadState(DataInput input) throws IOException {
+			target.loadState(input);
+		}
+
+		public String toString() {
+			return target.toString();
+		}
+	}
+}
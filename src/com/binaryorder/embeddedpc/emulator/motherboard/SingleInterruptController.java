@@ -8,11 +8,24 @@ import org.jpc.emulator.HardwareComponent;
 import org.jpc.emulator.motherboard.IOPortHandler;
 import org.jpc.emulator.motherboard.InterruptController;
 import org.jpc.emulator.processor.Processor;
+import org.jpc.support.Clock;
 
 public class SingleInterruptController implements InterruptController {
-	private InterruptControllerElement master;
+	/*
+	 * PRIORITY_TABLE[(priorityAdd << 8) | mask] is the priority of the highest priority bit set in mask when
+	 * priorityAdd has the highest priority, or 8 when mask is empty.
+	 */
+	private static final byte[] PRIORITY_TABLE = createPriorityTable();
+
+	InterruptControllerElement master;
 
 	private Processor connectedCPU;
+	private Clock clock;
+	// null unless metrics were enabled, so the default path neither counts nor reads the clock
+	InterruptMetrics metrics;
+	// state of the CPU's INTR line as last driven by this controller
+	boolean cpuLineRaised;
+	private long redundantSignals;
 
 	public SingleInterruptController() {
 		ioportRegistered = false;
@@ -25,17 +38,94 @@ public class SingleInterruptController implements InterruptController {
 
 	public void loadState(DataInput input) throws IOException {
 		ioportRegistered = false;
+		if(metrics != null)
+			metrics.clear();
 		master.loadState(input);
+		// the next update raises the line again if anything is pending
+		cpuLineRaised = false;
 	}
 
-	private void updateIRQ() {
-		int masterIRQ;
-		/* look at requested IRQ */
-		masterIRQ = master.getIRQ();
-		if(masterIRQ >= 0) {
-			// System.out.println("Raise interrupt " + masterIRQ);
-			connectedCPU.raiseInterrupt();
+	private static byte[] createPriorityTable() {
+		byte[] table = new byte[8 * 256];
+		for(int priorityAdd = 0; priorityAdd < 8; priorityAdd++) {
+			table[priorityAdd << 8] = 8;
+			for(int mask = 1; mask < 256; mask++) {
+				int priority = 0;
+				while((mask & (1 << ((priority + priorityAdd) & 7))) == 0)
+					priority++;
+				table[(priorityAdd << 8) | mask] = (byte) priority;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Starts or stops counting requests, acknowledges and EOIs per line and timing their latency. Metrics are off by
+	 * default; turning them off drops the figures collected so far.
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		if(!enabled)
+			metrics = null;
+		else if(metrics == null)
+			metrics = new InterruptMetrics();
+	}
+
+	public boolean isMetricsEnabled() {
+		return metrics != null;
+	}
+
+	/**
+	 * Returns a copy of the per line request, acknowledge and EOI counts and the latency histogram, or null when
+	 * metrics are not enabled.
+	 */
+	public InterruptMetrics getMetrics() {
+		return (metrics == null) ? null : metrics.snapshot();
+	}
+
+	public void clearMetrics() {
+		if(metrics != null)
+			metrics.clear();
+	}
+
+	/*
+	 * Emulated time for the latency figures; requests all look instant until a clock is connected.
+	 */
+	long getTime() {
+		return (clock == null) ? 0 : clock.getTime();
+	}
+
+	/**
+	 * Returns the IRQ line the controller would deliver next, or -1 when none is pending. This is a cached value and
+	 * costs nothing to poll.
+	 */
+	public int getPendingIRQ() {
+		return master.pendingIRQ;
+	}
+
+	/**
+	 * Number of updates that found an IRQ pending while the CPU's INTR line was already raised. These used to be
+	 * passed on as extra raiseInterrupt calls.
+	 */
+	public long getRedundantSignals() {
+		return redundantSignals;
+	}
+
+	/*
+	 * Drives the INTR line from the pending state, touching the CPU only when that state flips.
+	 */
+	void updateIRQ() {
+		boolean pending = master.getIRQ() >= 0;
+		if(pending == cpuLineRaised) {
+			if(pending)
+				redundantSignals++;
+			return;
 		}
+
+		cpuLineRaised = pending;
+		if(pending)
+			connectedCPU.raiseInterrupt();
+		else
+			connectedCPU.clearInterrupt();
 	}
 
 	public void setIRQ(int irqNumber, int level) {
@@ -53,6 +143,8 @@ public class SingleInterruptController implements InterruptController {
 
 		/* read the irq from the PIC */
 
+		// the CPU drops INTR itself when it takes the interrupt
+		cpuLineRaised = false;
 		masterIRQ = master.getIRQ();
 		if(masterIRQ >= 0) {
 			master.intAck(masterIRQ);
@@ -73,8 +165,9 @@ public class SingleInterruptController implements InterruptController {
 			// }
 		} else {
 			/* spurious IRQ on host controller */
-			System.out.println("spurious IRQ on host controller");
 			masterIRQ = 7;
+			if(metrics != null)
+				metrics.spurious(masterIRQ);
 			this.updateIRQ();
 			return master.irqBase + masterIRQ;
 		}
@@ -89,14 +182,14 @@ public class SingleInterruptController implements InterruptController {
 		return ret;
 	}
 
-	private class InterruptControllerElement {
+	class InterruptControllerElement {
 		private byte lastInterruptRequestRegister; // edge detection
 		private byte interruptRequestRegister;
 		private byte interruptMaskRegister;
 		private byte interruptServiceRegister;
 
 		private int priorityAdd; // highest IRQ priority
-		private int irqBase;
+		int irqBase;
 		private boolean readRegisterSelect;
 		private boolean poll;
 		private boolean specialMask;
@@ -105,15 +198,28 @@ public class SingleInterruptController implements InterruptController {
 		private boolean singleMode;
 		private byte elcr; // (elcr) PIIX3 edge/level trigger selection
 		private byte elcrMask;
+		// all lines when ICW1 selected level triggered mode
+		private byte levelMask;
+		private final boolean isMaster;
 
 		private boolean specialFullyNestedMode;
 
 		private boolean autoEOI;
 		private boolean rotateOnAutoEOI;
 
+		// what getIRQ returns, redone whenever IRR, IMR, ISR or priorityAdd change
+		private int pendingIRQ = -1;
+		// metrics line of IRQ 0 of this element
+		private final int lineBase;
+
 		private int[] ioPorts;
 
+		// written in place of the port count of older snapshots, which end after the ports
+		private static final int ELEMENT_STATE_TAG = -1;
+
 		public InterruptControllerElement(boolean master) {
+			isMaster = master;
+			lineBase = master ? 0 : 8;
 			if(master == true) {
 				ioPorts = new int[] { 0x20, 0x21, 0x4d0 };
 				elcrMask = (byte) 0xf8;
@@ -140,9 +246,12 @@ public class SingleInterruptController implements InterruptController {
 			output.writeBoolean(fourByteInit);
 			output.writeByte(elcr);
 			output.writeByte(elcrMask);
+			output.writeInt(ELEMENT_STATE_TAG);
 			output.writeInt(ioPorts.length);
 			for(int i = 0; i < ioPorts.length; i++)
 				output.writeInt(ioPorts[i]);
+			output.writeByte(levelMask);
+			output.writeBoolean(singleMode);
 		}
 
 		public void loadState(DataInput input) throws IOException {
@@ -163,9 +272,23 @@ public class SingleInterruptController implements InterruptController {
 			elcr = input.readByte();
 			elcrMask = input.readByte();
 			int len = input.readInt();
+			boolean tagged = (len == ELEMENT_STATE_TAG);
+			if(tagged)
+				len = input.readInt();
+			else if(len < 0)
+				throw new IOException("Unknown interrupt controller state " + len);
 			ioPorts = new int[len];
 			for(int i = 0; i < len; i++)
 				ioPorts[i] = input.readInt();
+			if(tagged) {
+				levelMask = input.readByte();
+				singleMode = input.readBoolean();
+			} else {
+				// older snapshots knew neither
+				levelMask = 0;
+				singleMode = false;
+			}
+			updatePending();
 		}
 
 		/* BEGIN IOPortCapable Methods */
@@ -195,6 +318,12 @@ public class SingleInterruptController implements InterruptController {
 		}
 
 		public boolean ioPortWrite(int address, byte data) {
+			boolean result = writeRegister(address, data);
+			updatePending();
+			return result;
+		}
+
+		private boolean writeRegister(int address, byte data) {
 			// System.out.println("ioPortWrite " + Integer.toHexString(address)
 			// + " " + Integer.toHexString(data));
 			int priority, command, irq;
@@ -203,15 +332,17 @@ public class SingleInterruptController implements InterruptController {
 				if(0 != (data & 0x10)) {
 					/* init */
 					this.reset();
-					connectedCPU.clearInterrupt();
+					if(isMaster) {
+						cpuLineRaised = false;
+						connectedCPU.clearInterrupt();
+					}
 
 					initState = 1;
 					fourByteInit = ((data & 1) != 0);
 					singleMode = ((data & 0x02) != 0);
 					// if(0 != (data & 0x02))
 					// System.err.println("single mode not supported");
-					if(0 != (data & 0x08))
-						System.err.println("level sensitive irq not supported");
+					levelMask = (byte) ((0 != (data & 0x08)) ? 0xff : 0);
 				} else if(0 != (data & 0x08)) {
 					if(0 != (data & 0x04))
 						poll = true;
@@ -220,7 +351,7 @@ public class SingleInterruptController implements InterruptController {
 					if(0 != (data & 0x40))
 						specialMask = (((data >>> 5) & 1) != 0);
 				} else {
-					command = data >>> 5;
+					command = (0xff & data) >>> 5;
 					switch(command) {
 					case 0:
 					case 4:
@@ -236,12 +367,16 @@ public class SingleInterruptController implements InterruptController {
 							interruptServiceRegister = (byte) (interruptServiceRegister & ~(1 << irq));
 							if(command == 5)
 								priorityAdd = (irq + 1) & 7;
+							if(metrics != null)
+								metrics.endOfInterrupt(lineBase + irq);
 							return true;
 						}
 						break;
 					case 3:
 						irq = data & 7;
 						interruptServiceRegister = (byte) (interruptServiceRegister & ~(1 << irq));
+						if(metrics != null)
+							metrics.endOfInterrupt(lineBase + irq);
 						return true;
 					case 6:
 						priorityAdd = (data + 1) & 7;
@@ -250,6 +385,8 @@ public class SingleInterruptController implements InterruptController {
 						irq = data & 7;
 						interruptServiceRegister = (byte) (interruptServiceRegister & ~(1 << irq));
 						priorityAdd = (irq + 1) & 7;
+						if(metrics != null)
+							metrics.endOfInterrupt(lineBase + irq);
 						return true;
 					default:
 						/* no operation */
@@ -310,6 +447,9 @@ public class SingleInterruptController implements InterruptController {
 			}
 			interruptRequestRegister = (byte) (interruptRequestRegister & ~(1 << ret));
 			interruptServiceRegister = (byte) (interruptServiceRegister & ~(1 << ret));
+			if(metrics != null)
+				metrics.acknowledged(lineBase + ret, getTime());
+			updatePending();
 			if(0 != (address >>> 7) || ret != 2)
 				SingleInterruptController.this.updateIRQ();
 			return ret;
@@ -319,7 +459,10 @@ public class SingleInterruptController implements InterruptController {
 
 			int mask;
 			mask = (1 << irqNumber);
-			if(0 != (elcr & mask)) {
+			if((metrics != null) && (0 != level) && ((lastInterruptRequestRegister & mask) == 0))
+				metrics.requested(lineBase + irqNumber, (interruptMaskRegister & mask) != 0, getTime());
+
+			if(0 != ((elcr | levelMask) & mask)) {
 				// System.out.println("level");
 				/* level triggered */
 				if(0 != level) {
@@ -341,30 +484,27 @@ public class SingleInterruptController implements InterruptController {
 					lastInterruptRequestRegister = (byte) (lastInterruptRequestRegister & ~mask);
 				}
 			}
+			updatePending();
 		}
 
 		private int getPriority(int mask) {
-			if((0xff & mask) == 0) {
-				return 8;
-			}
-			int priority = 0;
-			while((mask & (1 << ((priority + priorityAdd) & 7))) == 0) {
-				priority++;
-			}
-			return priority;
+			return PRIORITY_TABLE[(priorityAdd << 8) | (0xff & mask)];
 		}
 
 		public int getIRQ() {
-			int result = getIRQ2();
-			// System.out.println(Integer.toBinaryString(interruptRequestRegister)
-			// + " getIRQ() = " + result);
-			return result;
+			return pendingIRQ;
+		}
+
+		private void updatePending() {
+			pendingIRQ = computeIRQ();
 		}
 
-		public int getIRQ2() {
+		private int computeIRQ() {
 			int mask, currentPriority, priority;
 
-			mask = interruptRequestRegister & ~interruptMaskRegister;
+			mask = 0xff & interruptRequestRegister & ~interruptMaskRegister;
+			if(mask == 0)
+				return -1;
 			priority = this.getPriority(mask);
 			if(priority == 8) {
 				// System.out.println("getIRQ()==-1");
@@ -376,7 +516,7 @@ public class SingleInterruptController implements InterruptController {
 			 * for the priority computation.
 			 */
 			mask = interruptServiceRegister;
-			if(specialFullyNestedMode) {// && this.isMaster()) {
+			if(specialFullyNestedMode && isMaster) {
 				mask &= ~(1 << 2);
 			}
 			currentPriority = this.getPriority(mask);
@@ -390,26 +530,24 @@ public class SingleInterruptController implements InterruptController {
 			}
 		}
 
-		private void intAck(int irqNumber) {
+		void intAck(int irqNumber) {
+			if(metrics != null)
+				metrics.acknowledged(lineBase + irqNumber, getTime());
 			if(autoEOI) {
+				if(metrics != null)
+					metrics.endOfInterrupt(lineBase + irqNumber);
 				if(rotateOnAutoEOI)
 					priorityAdd = (irqNumber + 1) & 7;
 			} else {
 				interruptServiceRegister = (byte) (interruptServiceRegister | (1 << irqNumber));
 			}
 			/* We don't clear a level sensitive interrupt here */
-			if(0 == (elcr & (1 << irqNumber)))
+			if(0 == ((elcr | levelMask) & (1 << irqNumber)))
 				interruptRequestRegister = (byte) (interruptRequestRegister & ~(1 << irqNumber));
+			updatePending();
 		}
 
-		// private boolean isMaster() {
-		// if(SingleInterruptController.this.master == this)
-		// return true;
-		// else
-		// return false;
-		// }
-
-		private void reset() {
+		void reset() {
 			// zero all variables except elcrMask
 			lastInterruptRequestRegister = (byte) 0x0;
 			interruptRequestRegister = (byte) 0x0;
@@ -430,15 +568,15 @@ public class SingleInterruptController implements InterruptController {
 			fourByteInit = false;
 
 			elcr = (byte) 0x0; // (elcr) PIIX3 edge/level trigger selection
+			levelMask = (byte) 0x0;
+			pendingIRQ = -1;
 		}
 
 		public String toString() {
-			// if(isMaster()) {
-			return (SingleInterruptController.this).toString() + ": [Master Element]";
-			// } else {
-			// return (SingleInterruptController.this).toString() + ": [Slave
-			// Element]";
-			// }
+			if(isMaster)
+				return (SingleInterruptController.this).toString() + ": [Master Element]";
+			else
+				return (SingleInterruptController.this).toString() + ": [Slave Element]";
 		}
 	}
 
@@ -518,6 +656,7 @@ public class SingleInterruptController implements InterruptController {
 	private void masterPollCode() {
 		master.interruptServiceRegister = (byte) (master.interruptServiceRegister & ~(1 << 2));
 		master.interruptRequestRegister = (byte) (master.interruptRequestRegister & ~(1 << 2));
+		master.updatePending();
 	}
 
 	private boolean ioportRegistered;
@@ -528,6 +667,10 @@ public class SingleInterruptController implements InterruptController {
 
 		ioportRegistered = false;
 		connectedCPU = null;
+		cpuLineRaised = false;
+		redundantSignals = 0;
+		if(metrics != null)
+			metrics.clear();
 	}
 
 	public boolean initialised() {
@@ -548,6 +691,8 @@ public class SingleInterruptController implements InterruptController {
 	public void acceptComponent(HardwareComponent component) {
 		if(component instanceof Processor)
 			connectedCPU = (Processor) component;
+		if(component instanceof Clock)
+			clock = (Clock) component;
 		if((component instanceof IOPortHandler) && component.initialised()) {
 			((IOPortHandler) component).registerIOPortCapable(this);
 			ioportRegistered = true;
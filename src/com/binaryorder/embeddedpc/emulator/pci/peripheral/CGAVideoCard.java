@@ -2,7 +2,14 @@ package com.binaryorder.embeddedpc.emulator.pci.peripheral;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.jpc.emulator.HardwareComponent;
 import org.jpc.emulator.memory.Memory;
@@ -22,7 +29,21 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 	// VGA_RAM_SIZE must be a power of two
 	private static final int VGA_RAM_SIZE = 4096 * 1024;
 	private static final int INIT_VGA_RAM_SIZE = 64 * 1024;
-	private static final int PAGE_SHIFT = 12;
+	// video memory is tracked for changes in chunks of 1 << DIRTY_SHIFT bytes, less than a scanline
+	private static final int DIRTY_SHIFT = 6;
+	private static final int TEXT_ROWS = 25;
+	private static final int CGA_HEIGHT = 200;
+	private static final int CGA_LINE_BYTES = 80;
+	private static final int CGA_BANK_SIZE = 0x2000;
+	// scanlines per band when a frame is rendered in parallel
+	private static final int RENDER_BAND_LINES = 32;
+
+	// shared by all cards, created on first parallel frame
+	private static ForkJoinPool renderPool;
+
+	// the 16 RGBI colours of the CGA monitor as 0xRRGGBB
+	private static final int[] CGA_RGBI = new int[] { 0x000000, 0x0000aa, 0x00aa00, 0x00aaaa, 0xaa0000, 0xaa00aa,
+			0xaa5500, 0xaaaaaa, 0x555555, 0x5555ff, 0x55ff55, 0x55ffff, 0xff5555, 0xff55ff, 0xffff55, 0xffffff };
 
 	private final int[] expand4 = new int[256];
 	private final int[] expand2 = new int[256];
@@ -171,6 +192,14 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 	private int[] dacCache;
 	private int[] palette;
 	private int bankOffset;
+	// bumped by every port write that can change a colour, after the write
+	private volatile int paletteGeneration;
+	// what lastPalette was last converted from: the generation, the device, and 16 or 256 entries
+	private int convertedGeneration;
+	private GraphicsDisplay convertedDevice;
+	private int convertedEntries;
+	private int cgaGeneration;
+	private GraphicsDisplay cgaDevice;
 
 	private int vbeIndex;
 	private int[] vbeRegs;
@@ -196,19 +225,49 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 	private boolean memoryRegistered;
 
 	private boolean updatingScreen;
+	private volatile boolean renderOnDemand;
+	private volatile boolean parallelRendering;
 
 	// private VGARAMIORegion ioRegion;
 
 	private VGARAMIORegion ioRegion;
+	private final boolean vgaCompatibility;
+	// chunks of video memory changed for the frame being drawn, filled by VGARAMIORegion.takeDirty
+	private long[] frameDirty;
 	private Memory characterGenerator = null;
+	private final GlyphCache glyphCache = new GlyphCache(8);
+	private final DamageTracker damage = new DamageTracker();
+	// per frame render plans: the glyph of every changed text cell and the address of every graphics line to draw
+	private final int[][] cellGlyphs = new int[TEXT_ROWS * 80][];
+	private int[] lineAddresses = new int[0];
+
+	// text surface seen by the listeners at the last checkTextChanges
+	private final List<TextChangeListener> textListeners = new CopyOnWriteArrayList<TextChangeListener>();
+	private final int[] textShadow = new int[TEXT_ROWS * 80];
+	private final int[] textRow = new int[80];
 
 	// // CGA fields /////
 
 	private byte mode = 0;
+	// last values written to the mode control (0x3d8) and colour select (0x3d9) registers
+	private int modeControl;
+	private int colorSelect;
+	private final int[] cgaColors = new int[4];
+	// written ahead of the CGA registers at the end of the state; older snapshots end before it
+	private static final int CGA_STATE_TAG = 0x43474101;
 
 	// ///////////////////
 
 	public CGAVideoCard() {
+		this(false);
+	}
+
+	/**
+	 * @param vgaCompatibility map the VGA memory window at 0xA0000 with plane, latch and VBE bank handling and
+	 *            register the VBE ports, instead of the flat 16K CGA buffer at 0xB8000
+	 */
+	public CGAVideoCard(boolean vgaCompatibility) {
+		this.vgaCompatibility = vgaCompatibility;
 		ioportRegistered = false;
 		memoryRegistered = false;
 		setupArrays();
@@ -236,6 +295,7 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 
 		ioRegion = new VGARAMIORegion();
 		// ioRegion = new VGALowMemoryRegion();
+		frameDirty = new long[VGARAMIORegion.DIRTY_WORDS];
 
 		vbeRegs = new int[VBE_DISPI_INDEX_NB];
 
@@ -251,6 +311,8 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		vbeBankMask = ((VGA_RAM_SIZE >>> 16) - 1);
 
 		mode = 0;
+		modeControl = 0;
+		colorSelect = 0;
 	}
 
 	public void dumpState(DataOutput output) throws IOException {
@@ -344,6 +406,11 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		VGA_DRAW_LINE16.dumpState(output);
 		VGA_DRAW_LINE24.dumpState(output);
 		VGA_DRAW_LINE32.dumpState(output);
+
+		output.writeInt(CGA_STATE_TAG);
+		output.writeByte(mode);
+		output.writeInt(modeControl);
+		output.writeInt(colorSelect);
 	}
 
 	public void loadState(DataInput input) throws IOException {
@@ -451,9 +518,130 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		VGA_DRAW_LINE24.loadState(input);
 		VGA_DRAW_LINE32.loadState(input);
 
+		int tag;
+		try {
+			tag = input.readInt();
+		} catch(EOFException e) {
+			// saved before the CGA registers were: come back in text mode, as after a reset
+			tag = 0;
+		}
+		if(tag == CGA_STATE_TAG) {
+			mode = input.readByte();
+			modeControl = input.readInt();
+			colorSelect = input.readInt();
+		} else if(tag == 0) {
+			mode = 0;
+			modeControl = 0;
+			colorSelect = 0;
+		} else {
+			throw new IOException("Unknown CGA state " + Integer.toHexString(tag));
+		}
+		invalidatePalettes();
+
 		ioRegion = new VGARAMIORegion();
 	}
 
+	/**
+	 * Shares the video memory of <code>source</code> copy-on-write. Used when forking a machine.
+	 */
+	public void shareVideoMemory(CGAVideoCard source) {
+		ioRegion.shareBuffer(source.ioRegion);
+	}
+
+	VGARAMIORegion getVideoMemory() {
+		return ioRegion;
+	}
+
+	/*
+	 * The font is read from the memory block holding the character generator, starting at the given offset.
+	 */
+	void setCharacterGenerator(Memory block, int offset) {
+		characterGenerator = block;
+		glyphCache.setFont(block, offset);
+	}
+
+	public boolean isTextMode() {
+		return (graphicsRegister[GR_INDEX_MISC] & 1) == 0;
+	}
+
+	public int getTextColumns() {
+		return mode == 1 ? 40 : 80;
+	}
+
+	public int getTextRows() {
+		return TEXT_ROWS;
+	}
+
+	/**
+	 * Returns the text screen as it is in video memory, row by row, with the character in the low byte and the
+	 * attribute in the high byte of each cell. Nothing is rendered for this.
+	 */
+	public int[] getTextSurface() {
+		int columns = getTextColumns();
+		int[] cells = new int[TEXT_ROWS * columns];
+		for(int row = 0; row < TEXT_ROWS; row++)
+			readTextRow(row, columns, cells, row * columns);
+		return cells;
+	}
+
+	/**
+	 * Returns the characters of one text row, without attributes.
+	 */
+	public String getTextLine(int row) {
+		int columns = getTextColumns();
+		int[] cells = new int[columns];
+		readTextRow(row, columns, cells, 0);
+		char[] line = new char[columns];
+		for(int i = 0; i < columns; i++)
+			line[i] = (char) (cells[i] & 0xff);
+		return new String(line);
+	}
+
+	// a row is one character and one attribute byte per column
+	private void readTextRow(int row, int columns, int[] cells, int index) {
+		int offset = startAddress * 4 + row * columns * 2;
+		for(int i = 0; i < columns; i++, offset += 2)
+			cells[index + i] = 0xffff & ioRegion.getWord(offset);
+	}
+
+	public void addTextChangeListener(TextChangeListener listener) {
+		textListeners.add(listener);
+	}
+
+	public void removeTextChangeListener(TextChangeListener listener) {
+		textListeners.remove(listener);
+	}
+
+	/**
+	 * Compares the text screen with the state at the previous call and reports each changed row to the listeners.
+	 * Does nothing without listeners or outside text mode. Should be called from the emulation thread so the rows
+	 * are seen between instructions.
+	 */
+	public void checkTextChanges() {
+		if(textListeners.isEmpty() || !isTextMode())
+			return;
+
+		int columns = getTextColumns();
+		int[] row = textRow;
+		for(int y = 0; y < TEXT_ROWS; y++) {
+			readTextRow(y, columns, row, 0);
+			int shadow = y * 80;
+			boolean changed = false;
+			for(int x = 0; x < columns; x++) {
+				if(textShadow[shadow + x] != row[x]) {
+					textShadow[shadow + x] = row[x];
+					changed = true;
+				}
+			}
+			if(!changed)
+				continue;
+
+			int[] cells = (columns == row.length) ? row : Arrays.copyOf(row, columns);
+			for(TextChangeListener listener : textListeners)
+				listener.textRowChanged(y, cells);
+		}
+	}
+
 	public void resizeDisplay(GraphicsDisplay device) {
 		device.resizeDisplay(lastScreenWidth, lastScreenHeight);
 	}
@@ -563,8 +751,27 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 	}
 
 	public int[] ioPortsRequested() {
-		return new int[] { 0x3b4, 0x3b5, 0x3ba, 0x3d4, 0x3d5, 0x3d8, 0x3da, 0x3c0, 0x3c1, 0x3c2, 0x3c3, 0x3c4, 0x3c5,
-				0x3c6, 0x3c7, 0x3c8, 0x3c9, 0x3ca, 0x3cb, 0x3cc, 0x3cd, 0x3ce, 0x3cf, 0x1ce, 0x1cf, 0xff80, 0xff81 };
+		if(vgaCompatibility)
+			return new int[] { 0x3b4, 0x3b5, 0x3ba, 0x3d4, 0x3d5, 0x3d8, 0x3d9, 0x3da, 0x3c0, 0x3c1, 0x3c2, 0x3c3,
+					0x3c4, 0x3c5, 0x3c6, 0x3c7, 0x3c8, 0x3c9, 0x3ca, 0x3cb, 0x3cc, 0x3cd, 0x3ce, 0x3cf, 0x1ce, 0x1cf,
+					0xff80, 0xff81 };
+		return new int[] { 0x3b4, 0x3b5, 0x3ba, 0x3d4, 0x3d5, 0x3d8, 0x3d9, 0x3da, 0x3c0, 0x3c1, 0x3c2, 0x3c3, 0x3c4,
+				0x3c5, 0x3c6, 0x3c7, 0x3c8, 0x3c9, 0x3ca, 0x3cb, 0x3cc, 0x3cd, 0x3ce, 0x3cf };
+	}
+
+	public boolean isVGACompatible() {
+		return vgaCompatibility;
+	}
+
+	/*
+	 * The CGA buffer is a plain byte array at 0xB8000: every access is an index into it, with no register decoding.
+	 * Only the compatibility mode goes through VGALowMemoryRegion.
+	 */
+	private void mapVideoMemory(PhysicalAddressSpace memory) {
+		if(vgaCompatibility)
+			memory.mapMemoryRegion(new VGALowMemoryRegion(), 0xa0000, 0x20000);
+		else
+			memory.mapMemoryRegion(ioRegion, 0xb8000, 16384);
 	}
 
 	private final void vgaIOPortWriteByte(int address, int data) {
@@ -600,10 +807,16 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 			// }
 
 			mode = newMode;
+			modeControl = data;
+			paletteGeneration++;
 
 			attributeRegisterIndex |= 0x20;
 			graphicsRegister[GR_INDEX_MISC] |= mode == 0 ? 0 : 1;
 			break;
+		case 0x3d9:
+			colorSelect = data & 0x3f;
+			paletteGeneration++;
+			break;
 		case 0x3b5:
 		case 0x3d5:
 			if(crtRegisterIndex <= 7 && (crtRegister[CR_INDEX_VERT_RETRACE_END] & 0x80) != 0) {
@@ -642,9 +855,11 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 				case 0x0e:
 				case AR_INDEX_PALLETE_MAX:
 					attributeRegister[index] = data & 0x3f;
+					paletteGeneration++;
 					break;
 				case AR_INDEX_ATTR_MODE_CONTROL:
 					attributeRegister[AR_INDEX_ATTR_MODE_CONTROL] = data & ~0x10;
+					paletteGeneration++;
 					break;
 				case AR_INDEX_OVERSCAN_COLOR:
 					attributeRegister[AR_INDEX_OVERSCAN_COLOR] = data;
@@ -657,6 +872,7 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 					break;
 				case AR_INDEX_COLOR_SELECT:
 					attributeRegister[AR_INDEX_COLOR_SELECT] = data & ~0xf0;
+					paletteGeneration++;
 					break;
 				default:
 					break;
@@ -688,6 +904,7 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 			if(++dacSubIndex == 3) {
 				for(int i = 0; i < 3; i++)
 					palette[((0xff & dacWriteIndex) * 3) + i] = dacCache[i];
+				paletteGeneration++;
 				dacSubIndex = 0;
 				dacWriteIndex++;
 			}
@@ -975,7 +1192,16 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		ByteBuffer.fillIntArray(attributeRegister, 0);
 		ByteBuffer.fillIntArray(crtRegister, 0);
 
+		if(vgaCompatibility) {
+			// the CGA BIOS never programs the VGA registers: open the window at 0xB8000 (map mode 3) in chain 4, so
+			// that every byte lands at the offset the renderers read, as on the flat CGA buffer
+			graphicsRegister[GR_INDEX_MISC] = 0x0c;
+			sequencerRegister[SR_INDEX_SEQ_MEMORY_MODE] = 0x08;
+			sequencerRegister[SR_INDEX_MAP_MASK] = 0x0f;
+		}
+
 		graphicMode = -1;
+		invalidatePalettes();
 	}
 
 	public class VGALowMemoryRegion extends Memory {
@@ -1264,15 +1490,20 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 
 	public static class VGARAMIORegion extends MemoryMappedIORegion {
 		private byte[] buffer;
+		private boolean bufferShared;
 		private int startAddress;
-		private boolean[] dirtyPages;
+		// one bit per chunk of video memory written since the last takeDirty. It is set by the emulation thread and
+		// taken by the display refresh thread, so every word is only ever changed atomically.
+		private final AtomicLongArray dirty;
+
+		static final int DIRTY_WORDS = (VGA_RAM_SIZE >>> DIRTY_SHIFT) >>> 6;
+		// written in place of the page count of the old boolean dirty pages
+		private static final int DIRTY_BITMAP_TAG = -1;
 
 		public VGARAMIORegion() {
 			// buffer = new byte[VGA_RAM_SIZE];
 			buffer = new byte[INIT_VGA_RAM_SIZE];
-			dirtyPages = new boolean[(VGA_RAM_SIZE >>> PAGE_SHIFT) + 1];
-			for(int i = 0; i < dirtyPages.length; i++)
-				dirtyPages[i] = false;
+			dirty = new AtomicLongArray(DIRTY_WORDS);
 
 			startAddress = -1;
 		}
@@ -1281,9 +1512,10 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 			output.writeInt(startAddress);
 			output.writeInt(buffer.length);
 			output.write(buffer);
-			output.writeInt(dirtyPages.length);
-			for(int i = 0; i < dirtyPages.length; i++)
-				output.writeBoolean(dirtyPages[i]);
+			output.writeInt(DIRTY_BITMAP_TAG);
+			output.writeInt(DIRTY_WORDS);
+			for(int i = 0; i < DIRTY_WORDS; i++)
+				output.writeLong(dirty.get(i));
 		}
 
 		public void loadState(DataInput input) throws IOException {
@@ -1292,25 +1524,67 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 			buffer = new byte[len];
 			input.readFully(buffer, 0, len);
 			len = input.readInt();
-			dirtyPages = new boolean[len];
-			for(int i = 0; i < len; i++)
-				dirtyPages[i] = input.readBoolean();
+			if(len >= 0) {
+				// older snapshots have one boolean per page; simply redraw everything
+				for(int i = 0; i < len; i++)
+					input.readBoolean();
+				markAllDirty();
+				return;
+			}
+			if(len != DIRTY_BITMAP_TAG)
+				throw new IOException("Unknown video memory dirty map " + len);
+
+			len = input.readInt();
+			if((len < 0) || (len > DIRTY_WORDS))
+				throw new IOException("Video memory dirty map of " + len + " words, at most " + DIRTY_WORDS + " expected");
+			for(int i = 0; i < DIRTY_WORDS; i++)
+				dirty.set(i, (i < len) ? input.readLong() : 0L);
+		}
+
+		/**
+		 * Makes this region use the buffer of <code>source</code> until either of them is written to.
+		 */
+		public void shareBuffer(VGARAMIORegion source) {
+			buffer = source.buffer;
+			bufferShared = true;
+			source.bufferShared = true;
+			for(int i = 0; i < DIRTY_WORDS; i++)
+				dirty.set(i, source.dirty.get(i));
 		}
 
-		private void increaseVGARAMSize(int offset) {
-			if((offset < 0) || (offset >= VGA_RAM_SIZE))
+		private void unshareBuffer() {
+			byte[] newBuf = new byte[buffer.length];
+			System.arraycopy(buffer, 0, newBuf, 0, buffer.length);
+			buffer = newBuf;
+			bufferShared = false;
+		}
+
+		/*
+		 * Grows the buffer to the next power of two holding offset + length bytes. The accessors compare against
+		 * buffer.length first, so this only runs on an actual miss. Negative offsets fail on the array access.
+		 */
+		private void ensureCapacity(int offset, int length) {
+			int end = offset + length;
+			if((offset < 0) || (end > VGA_RAM_SIZE))
 				throw new ArrayIndexOutOfBoundsException("tried to access outside of memeory bounds");
 
 			int newSize = buffer.length;
-			while(newSize <= offset)
+			while(newSize < end)
 				newSize = newSize << 1;
 
-			if(newSize > VGA_RAM_SIZE)
-				newSize = VGA_RAM_SIZE;
-
 			byte[] newBuf = new byte[newSize];
 			System.arraycopy(buffer, 0, newBuf, 0, buffer.length);
 			buffer = newBuf;
+			bufferShared = false;
+		}
+
+		/**
+		 * Grows the buffer up front to hold the first <code>end</code> bytes, so that readers running side by side
+		 * never replace it.
+		 */
+		void reserve(int end) {
+			if(end > buffer.length)
+				ensureCapacity(0, Math.min(end, VGA_RAM_SIZE));
 		}
 
 		public void copyContentsInto(int address, byte[] buf, int off, int len) {
@@ -1320,31 +1594,33 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		}
 
 		public void copyContentsFrom(int address, byte[] buf, int off, int len) {
+			if(bufferShared)
+				unshareBuffer();
 			System.arraycopy(buf, off, buffer, address, len);
 		}
 
 		public void clear() {
+			if(bufferShared)
+				unshareBuffer();
 			for(int i = 0; i < buffer.length; i++)
 				buffer[i] = 0;
 
-			for(int i = 0; i < dirtyPages.length; i++)
-				dirtyPages[i] = false;
+			markAllDirty();
 		}
 
 		public void clear(int start, int length) {
 			int limit = start + length;
 			if(limit > getSize())
 				throw new ArrayIndexOutOfBoundsException("Attempt to clear outside of memory bounds");
-			try {
-				for(int i = start; i < limit; i++)
-					buffer[i] = 0;
-			} catch(ArrayIndexOutOfBoundsException e) {
-			}
+			if(bufferShared)
+				unshareBuffer();
+			// bytes beyond the current capacity have never been written and are zero already
+			int end = Math.min(limit, buffer.length);
+			for(int i = start; i < end; i++)
+				buffer[i] = 0;
 
-			int pageStart = start >>> PAGE_SHIFT;
-			int pageLimit = (limit - 1) >>> PAGE_SHIFT;
-			for(int i = pageStart; i <= pageLimit; i++)
-				dirtyPages[i] = true;
+			for(int chunk = start >>> DIRTY_SHIFT; chunk <= (limit - 1) >>> DIRTY_SHIFT; chunk++)
+				markChunk(chunk);
 		}
 
 		public boolean isCacheable() {
@@ -1355,12 +1631,65 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 			return false;
 		}
 
-		public boolean pageIsDirty(int i) {
-			return dirtyPages[i];
+		private void markDirty(int offset) {
+			markChunk(offset >>> DIRTY_SHIFT);
+		}
+
+		private void markChunk(int chunk) {
+			int word = chunk >>> 6;
+			long bit = 1L << chunk;
+			// usually the chunk has been written before in this frame, which needs no update at all
+			for(long bits = dirty.get(word); (bits & bit) == 0; bits = dirty.get(word)) {
+				if(dirty.compareAndSet(word, bits, bits | bit))
+					return;
+			}
 		}
 
-		public void cleanPage(int i) {
-			dirtyPages[i] = false;
+		private void markAllDirty() {
+			for(int i = 0; i < DIRTY_WORDS; i++)
+				dirty.set(i, -1L);
+		}
+
+		/**
+		 * Returns the backing array for direct reads by the renderers. It is replaced when the region grows or stops
+		 * sharing, so it must not be held on to.
+		 */
+		byte[] getBuffer() {
+			return buffer;
+		}
+
+		/**
+		 * Copies the chunks written since the previous call into <code>bitmap</code> and returns it. Each word is
+		 * taken and cleared in one atomic step, so a chunk written meanwhile is either in this bitmap or stays marked
+		 * for the next call.
+		 */
+		public long[] takeDirty(long[] bitmap) {
+			for(int i = 0; i < DIRTY_WORDS; i++)
+				bitmap[i] = dirty.getAndSet(i, 0L);
+			return bitmap;
+		}
+
+		/**
+		 * Tells whether any byte from start to end (inclusive) is marked in the bitmap.
+		 */
+		public static boolean isDirty(long[] bitmap, int start, int end) {
+			int first = start >>> DIRTY_SHIFT;
+			int last = end >>> DIRTY_SHIFT;
+			int firstWord = first >>> 6;
+			int lastWord = last >>> 6;
+			if(lastWord >= bitmap.length)
+				lastWord = bitmap.length - 1;
+
+			for(int word = firstWord; word <= lastWord; word++) {
+				long bits = bitmap[word];
+				if(word == firstWord)
+					bits &= -1L << first;
+				if(word == (last >>> 6))
+					bits &= -1L >>> (63 - (last & 63));
+				if(bits != 0)
+					return true;
+			}
+			return false;
 		}
 
 		// IORegion Methods
@@ -1385,83 +1714,55 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		}
 
 		public void setByte(int offset, byte data) {
-			try {
-				dirtyPages[offset >>> PAGE_SHIFT] = true;
-				buffer[offset] = data;
-			} catch(ArrayIndexOutOfBoundsException e) {
-				increaseVGARAMSize(offset);
-				setByte(offset, data);
-			}
+			if(bufferShared)
+				unshareBuffer();
+			if(offset >= buffer.length)
+				ensureCapacity(offset, 1);
+			buffer[offset] = data;
+			markDirty(offset);
 		}
 
 		public byte getByte(int offset) {
-			try {
-				return buffer[offset];
-			} catch(ArrayIndexOutOfBoundsException e) {
-				increaseVGARAMSize(offset);
-				return getByte(offset);
-			}
+			if(offset >= buffer.length)
+				ensureCapacity(offset, 1);
+			return buffer[offset];
 		}
 
 		public void setWord(int offset, short data) {
-			try {
-				buffer[offset] = (byte) data;
-				dirtyPages[offset >>> PAGE_SHIFT] = true;
-				offset++;
-				buffer[offset] = (byte) (data >> 8);
-				dirtyPages[offset >>> PAGE_SHIFT] = true;
-			} catch(ArrayIndexOutOfBoundsException e) {
-				increaseVGARAMSize(offset);
-				setWord(offset, data);
-			}
+			if(bufferShared)
+				unshareBuffer();
+			if(offset > buffer.length - 2)
+				ensureCapacity(offset, 2);
+			buffer[offset] = (byte) data;
+			buffer[offset + 1] = (byte) (data >> 8);
+			markDirty(offset);
+			markDirty(offset + 1);
 		}
 
 		public short getWord(int offset) {
-			try {
-				int result = 0xFF & buffer[offset];
-				offset++;
-				result |= buffer[offset] << 8;
-				return (short) result;
-			} catch(ArrayIndexOutOfBoundsException e) {
-				increaseVGARAMSize(offset);
-				return getWord(offset);
-			}
+			if(offset > buffer.length - 2)
+				ensureCapacity(offset, 2);
+			return (short) ((0xFF & buffer[offset]) | (buffer[offset + 1] << 8));
 		}
 
 		public void setDoubleWord(int offset, int data) {
-			try {
-				dirtyPages[offset >>> PAGE_SHIFT] = true;
-				buffer[offset] = (byte) data;
-				offset++;
-				data >>= 8;
-				buffer[offset] = (byte) (data);
-				offset++;
-				data >>= 8;
-				buffer[offset] = (byte) (data);
-				offset++;
-				data >>= 8;
-				buffer[offset] = (byte) (data);
-				dirtyPages[offset >>> PAGE_SHIFT] = true;
-			} catch(ArrayIndexOutOfBoundsException e) {
-				increaseVGARAMSize(offset);
-				setDoubleWord(offset, data);
-			}
+			if(bufferShared)
+				unshareBuffer();
+			if(offset > buffer.length - 4)
+				ensureCapacity(offset, 4);
+			buffer[offset] = (byte) data;
+			buffer[offset + 1] = (byte) (data >> 8);
+			buffer[offset + 2] = (byte) (data >> 16);
+			buffer[offset + 3] = (byte) (data >> 24);
+			markDirty(offset);
+			markDirty(offset + 3);
 		}
 
 		public int getDoubleWord(int offset) {
-			try {
-				int result = 0xFF & buffer[offset];
-				offset++;
-				result |= (0xFF & buffer[offset]) << 8;
-				offset++;
-				result |= (0xFF & buffer[offset]) << 16;
-				offset++;
-				result |= (buffer[offset]) << 24;
-				return result;
-			} catch(ArrayIndexOutOfBoundsException e) {
-				increaseVGARAMSize(offset);
-				return getDoubleWord(offset);
-			}
+			if(offset > buffer.length - 4)
+				ensureCapacity(offset, 4);
+			return (0xFF & buffer[offset]) | ((0xFF & buffer[offset + 1]) << 8) | ((0xFF & buffer[offset + 2]) << 16)
+					| (buffer[offset + 3] << 24);
 		}
 
 		public String toString() {
@@ -1478,8 +1779,84 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 
 	}
 
+	/**
+	 * In render-on-demand mode the periodic updateDisplay calls draw nothing. Changes keep being tracked, and
+	 * {@link #renderFrame(GraphicsDisplay)} brings the display buffer up to date in one pass when a frame is wanted.
+	 */
+	public void setRenderOnDemand(boolean renderOnDemand) {
+		this.renderOnDemand = renderOnDemand;
+	}
+
+	public boolean isRenderOnDemand() {
+		return renderOnDemand;
+	}
+
+	/**
+	 * Splits each frame into horizontal bands drawn on a shared ForkJoinPool. What changed is still worked out on the
+	 * calling thread, so the display buffer and the reported damage are the same as with serial rendering.
+	 */
+	public void setParallelRendering(boolean parallelRendering) {
+		this.parallelRendering = parallelRendering;
+	}
+
+	public boolean isParallelRendering() {
+		return parallelRendering;
+	}
+
+	private static synchronized ForkJoinPool getRenderPool() {
+		if(renderPool == null)
+			renderPool = new ForkJoinPool();
+		return renderPool;
+	}
+
+	/*
+	 * Draws the rows [first, last) of a frame. Bands never share rows and only write their own part of the display
+	 * buffer.
+	 */
+	private interface BandRenderer {
+		void renderRows(int first, int last);
+	}
+
+	private static class RenderBand extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final BandRenderer renderer;
+		private final int first, last, bandRows;
+
+		RenderBand(BandRenderer renderer, int first, int last, int bandRows) {
+			this.renderer = renderer;
+			this.first = first;
+			this.last = last;
+			this.bandRows = bandRows;
+		}
+
+		protected void compute() {
+			if(last - first <= bandRows) {
+				renderer.renderRows(first, last);
+				return;
+			}
+			int middle = first + (last - first) / 2;
+			invokeAll(new RenderBand(renderer, first, middle, bandRows), new RenderBand(renderer, middle, last, bandRows));
+		}
+	}
+
+	private final void renderBands(int rows, int bandRows, BandRenderer renderer) {
+		if(!parallelRendering || (rows <= bandRows))
+			renderer.renderRows(0, rows);
+		else
+			getRenderPool().invoke(new RenderBand(renderer, 0, rows, bandRows));
+	}
+
 	// Public Methods Used By Output Device
 	public final void updateDisplay(GraphicsDisplay device) {
+		if(!renderOnDemand)
+			renderFrame(device);
+	}
+
+	/**
+	 * Draws everything that changed since the last frame, whatever the render mode.
+	 */
+	public final synchronized void renderFrame(GraphicsDisplay device) {
 		if(device == null)
 			return;
 
@@ -1505,13 +1882,17 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 			drawText(fullUpdate, device);
 			break;
 		case GMODE_GRAPH:
-			drawGraphic(fullUpdate, device);
+			if(((mode == 1) || (mode == 2)) && ((vbeRegs[VBE_DISPI_INDEX_ENABLE] & VBE_DISPI_ENABLED) == 0))
+				drawCGAGraphic(fullUpdate, device);
+			else
+				drawGraphic(fullUpdate, device);
 			break;
 		case GMODE_BLANK:
 		default:
 			drawBlank(fullUpdate, device);
 			break;
 		}
+		damage.flush(device);
 
 		updatingScreen = false;
 	}
@@ -1520,6 +1901,8 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		boolean temp = updatePalette16(device);
 		fullUpdate |= temp;
 		int[] palette = lastPalette;
+		if(temp)
+			glyphCache.clear();
 
 		temp = updateBasicParameters();
 		fullUpdate |= temp;
@@ -1530,22 +1913,8 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		int charHeight = 8;
 		int charWidth = 8;
 
-		int width = 0;
-		int height = 0;
-		switch(mode) {
-		case 0:
-			width = 80;
-			height = 25;
-			break;
-		case 1:
-			width = 40;
-			height = 25;
-			break;
-		case 2:
-			width = 80;
-			height = 25;
-			break;
-		}
+		int width = getTextColumns();
+		int height = TEXT_ROWS;
 
 		if((width != this.lastWidth) || (height != this.lastHeight) || (charWidth != this.lastCW)
 				|| (charHeight != this.lastCH)) {
@@ -1579,7 +1948,17 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 
 		int cursorIndex = (this.startAddress + this.cursorOffset) * 4;
 		int lastCharOffset = 0;
+		int changedCells = 0;
+		final int[][] glyphs = cellGlyphs;
+
+		int backgroundColor = 0;// palette[characterAttribute >>>
+		// 4];
+		int foregroundColor = 0xFFffffff; // 0xff;//
+		// palette[characterAttribute
+		// &
+		// 0xf];
 
+		// the glyph cache is not thread safe, so the glyphs are looked up before any band is drawn
 		for(int charY = 0; charY < height; charY++) {
 			int srcOffset = srcIndex;
 			for(int charX = 0; charX < width; charX++) {
@@ -1597,19 +1976,42 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 					// System.out.println("char = " +
 					// Integer.toHexString(character));
 					// }
-					int glyphOffset = character * 8;// fontOffset[(characterAttribute
-					// >>> 3) & 1] + 32 * 4 *
-					// character;
-					int backgroundColor = 0;// palette[characterAttribute >>>
-					// 4];
-					int foregroundColor = 0xFFffffff; // 0xff;//
-					// palette[characterAttribute
-					// &
-					// 0xf];
-
-					drawGlyph8(device.getDisplayBuffer(), charY * charHeight * lastScreenWidth + charX * 8,
-							lastScreenWidth, glyphOffset, charHeight, foregroundColor, backgroundColor);
-					device.dirtyDisplayRegion(charX * 8, charY * charHeight, 8, charHeight);
+					glyphs[lastCharOffset] = glyphCache.getGlyph(character, foregroundColor, backgroundColor);
+					changedCells++;
+				} else
+					glyphs[lastCharOffset] = null;
+				srcOffset += 2;
+				lastCharOffset++;
+			}
+			srcIndex += width * 2;
+		}
+		if(changedCells == 0)
+			return;
+
+		final int[] dest = device.getDisplayBuffer();
+		final int columns = width;
+		final int glyphHeight = charHeight;
+		final int scanSize = lastScreenWidth;
+		renderBands(height, RENDER_BAND_LINES / charHeight, new BandRenderer() {
+			public void renderRows(int first, int last) {
+				for(int charY = first; charY < last; charY++) {
+					for(int charX = 0; charX < columns; charX++) {
+						int[] glyph = glyphs[charY * columns + charX];
+						if(glyph != null)
+							drawGlyph8(dest, charY * glyphHeight * scanSize + charX * 8, scanSize, glyph, glyphHeight);
+					}
+				}
+			}
+		});
+
+		// damage and the cursor on top of its cell once all bands are done
+		srcIndex = this.startAddress * 4;
+		lastCharOffset = 0;
+		for(int charY = 0; charY < height; charY++) {
+			int srcOffset = srcIndex;
+			for(int charX = 0; charX < width; charX++) {
+				if(glyphs[lastCharOffset] != null) {
+					damage.add(charX * 8, charY * charHeight, 8, charHeight);
 
 					if((srcOffset == cursorIndex) && ((crtRegister[CR_INDEX_CURSOR_START] & 0x20) == 0)) {
 						int lineStart = crtRegister[CR_INDEX_CURSOR_START] & 0x1f;
@@ -1620,17 +2022,17 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 
 						if((lineLast >= lineStart) && (lineStart < charHeight)) {
 							int tempHeight = lineLast - lineStart + 1;
-							drawCursorGlyph8(device.getDisplayBuffer(), (charY * charHeight + lineStart)
+							drawCursorGlyph8(dest, (charY * charHeight + lineStart)
 									* lastScreenWidth + charX * 8, lastScreenWidth, tempHeight, foregroundColor,
 									backgroundColor);
-							device.dirtyDisplayRegion(charX * 8, charY * charHeight + lineStart, 8, tempHeight);
+							damage.add(charX * 8, charY * charHeight + lineStart, 8, tempHeight);
 						}
 					}
 				}
 				srcOffset += 2;
 				lastCharOffset++;
 			}
-			srcIndex += 160;// lineOffset;
+			srcIndex += width * 2;
 		}
 	}
 
@@ -1669,8 +2071,8 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 				ex2[i] = input.readInt();
 		}
 
-		void updateDisplay(GraphicsDisplay device, int width, int height, int dispWidth, boolean fullUpdate,
-				int multiScan) {
+		void updateDisplay(final GraphicsDisplay device, final int width, int height, final int dispWidth,
+				boolean fullUpdate, int multiScan) {
 			int multiRun = multiScan;
 			int addr1 = 4 * startAddress;
 			// int lineSize = width; // get the line size from the display
@@ -1687,9 +2089,11 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 			boolean addrMunge = addrMunge1 || addrMunge2;
 			int mask = (crtRegister[CR_INDEX_CRTC_MODE_CONTROL] & 3) ^ 3;
 
-			int pageMin = Integer.MAX_VALUE;
-			int pageMax = Integer.MIN_VALUE;
+			long[] dirty = ioRegion.takeDirty(frameDirty);
 
+			// the addresses depend on the lines before, so they are worked out here and only the drawing is banded
+			final int[] lines = getLineAddresses(height);
+			int end = 0;
 			for(int y = 0; y < height; y++) {
 				boolean update = fullUpdate;
 				int addr = addr1;
@@ -1705,20 +2109,11 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 						addr = (addr & ~0x8000) | ((y1 & 2) << 14);
 				}
 
-				int pageStart = addr >>> PAGE_SHIFT;
-				int pageEnd = (addr + byteWidth(width) - 1) >>> PAGE_SHIFT;
-				for(int i = pageStart; i <= pageEnd; i++) {
-					if(update |= ioRegion.pageIsDirty(i)) {
-						pageMin = Math.min(pageMin, pageStart);
-						pageMax = Math.max(pageMax, pageEnd);
-						drawLine(device, addr, width, y, dispWidth);
-						// if the "cursor_draw_line" function pointer is not
-						// null, then call it here.
-						// if (s->cursor_draw_line)
-						// s->cursor_draw_line(s, d, y);
-						break;
-					}
-				}
+				if(update || VGARAMIORegion.isDirty(dirty, addr, addr + byteWidth(width) - 1)) {
+					lines[y] = addr;
+					end = Math.max(end, addr + byteWidth(width));
+				} else
+					lines[y] = -1;
 
 				if(multiRun == 0) {
 					if((y1 & mask) == mask)
@@ -1733,11 +2128,34 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 					addr1 = 0;
 			}
 
-			// for(int i = pageMin; i <= pageMax; i++)
-			// ioRegion.cleanPage(i);
+			// growing the buffer from inside a band would swap it under the others
+			ioRegion.reserve(end);
+			renderBands(height, RENDER_BAND_LINES, new BandRenderer() {
+				public void renderRows(int first, int last) {
+					for(int y = first; y < last; y++) {
+						if(lines[y] >= 0)
+							drawLine(device, lines[y], width, y, dispWidth);
+						// if the "cursor_draw_line" function pointer is not
+						// null, then call it here.
+						// if (s->cursor_draw_line)
+						// s->cursor_draw_line(s, d, y);
+					}
+				}
+			});
+
+			for(int y = 0; y < height; y++) {
+				if(lines[y] >= 0)
+					damage.add(0, y, dispWidth, 1);
+			}
 		}
 	}
 
+	private final int[] getLineAddresses(int height) {
+		if(lineAddresses.length < height)
+			lineAddresses = new int[height];
+		return lineAddresses;
+	}
+
 	class DrawLine2 extends GraphicsUpdater {
 		int byteWidth(int width) {
 			return (width / 2);
@@ -1770,8 +2188,6 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 				dest[index++] = palette[(v >>> 0) & 0xf];
 				offset += 4;
 			} while(--width != 0);
-
-			device.dirtyDisplayRegion(0, y, dispWidth, 1);
 		}
 	}
 
@@ -1807,8 +2223,6 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 				dest[index++] = dest[index++] = palette[(v >>> 0) & 0xf];
 				offset += 4;
 			} while(--width != 0);
-
-			device.dirtyDisplayRegion(0, y, dispWidth, 1);
 		}
 	}
 
@@ -1846,8 +2260,6 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 				dest[index++] = palette[(v >>> 0) & 0xF];
 				offset += 4;
 			} while(--width != 0);
-
-			device.dirtyDisplayRegion(0, y, dispWidth, 1);
 		}
 	}
 
@@ -1883,8 +2295,6 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 				dest[index++] = dest[index++] = palette[(v >>> 0) & 0xF];
 				offset += 4;
 			} while(--width != 0);
-
-			device.dirtyDisplayRegion(0, y, dispWidth, 1);
 		}
 	}
 
@@ -1906,8 +2316,6 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 				dest[index++] = val;
 				width--;
 			} while(width != 0);
-
-			device.dirtyDisplayRegion(0, y, dispWidth, 1);
 		}
 	}
 
@@ -1926,8 +2334,6 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 				index++;
 				width--;
 			} while(width != 0);
-
-			device.dirtyDisplayRegion(0, y, dispWidth, 1);
 		}
 	}
 
@@ -1949,8 +2355,6 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 				offset += 2;
 				i++;
 			} while(--width != 0);
-
-			device.dirtyDisplayRegion(0, y, dispWidth, 1);
 		}
 	}
 
@@ -1972,8 +2376,6 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 				offset += 2;
 				i++;
 			} while(--width != 0);
-
-			device.dirtyDisplayRegion(0, y, dispWidth, 1);
 		}
 	}
 
@@ -1993,8 +2395,6 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 
 				dest[i++] = device.rgbToPixel(r, g, b);
 			} while(--width != 0);
-
-			device.dirtyDisplayRegion(0, y, dispWidth, 1);
 		}
 	}
 
@@ -2015,8 +2415,6 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 
 				dest[i++] = device.rgbToPixel(r, g, b);
 			} while(--width != 0);
-
-			device.dirtyDisplayRegion(0, y, dispWidth, 1);
 		}
 	}
 
@@ -2105,6 +2503,129 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		graphicUpdater.updateDisplay(device, width, height, dispWidth, fullUpdate, multiScan);
 	}
 
+	/*
+	 * The CGA graphics modes: 320x200 with 4 colours (mode 1) and 640x200 with 2 colours (mode 2). Both use 80
+	 * bytes per scanline, even scanlines in the first 8K of the buffer and odd ones in the second.
+	 */
+	private final void drawCGAGraphic(boolean fullUpdate, GraphicsDisplay device) {
+		fullUpdate |= updateBasicParameters();
+		fullUpdate |= updateCGAPalette(device);
+
+		int width = (mode == 2) ? 640 : 320;
+		if((width != lastWidth) || (CGA_HEIGHT != lastHeight)) {
+			lastScreenWidth = lastWidth = width;
+			lastScreenHeight = lastHeight = CGA_HEIGHT;
+			device.resizeDisplay(lastScreenWidth, lastScreenHeight);
+			fullUpdate = true;
+		}
+
+		long[] dirty = ioRegion.takeDirty(frameDirty);
+
+		final int[] lines = getLineAddresses(CGA_HEIGHT);
+		// the start address counts words
+		int start = (startAddress << 1) & (CGA_BANK_SIZE - 1);
+		for(int y = 0; y < CGA_HEIGHT; y++) {
+			int offset = ((y & 1) * CGA_BANK_SIZE) + ((start + (y >> 1) * CGA_LINE_BYTES) & (CGA_BANK_SIZE - 1));
+			if(fullUpdate || VGARAMIORegion.isDirty(dirty, offset, offset + CGA_LINE_BYTES - 1))
+				lines[y] = offset;
+			else
+				lines[y] = -1;
+		}
+
+		final byte[] buffer = ioRegion.getBuffer();
+		final int[] dest = device.getDisplayBuffer();
+		final int lineWidth = width;
+		final boolean twoColour = (mode == 2);
+		renderBands(CGA_HEIGHT, RENDER_BAND_LINES, new BandRenderer() {
+			public void renderRows(int first, int last) {
+				for(int y = first; y < last; y++) {
+					if(lines[y] < 0)
+						continue;
+					if(twoColour)
+						drawCGALine2(buffer, lines[y], dest, y * lineWidth);
+					else
+						drawCGALine4(buffer, lines[y], dest, y * lineWidth);
+				}
+			}
+		});
+
+		for(int y = 0; y < CGA_HEIGHT; y++) {
+			if(lines[y] >= 0)
+				damage.add(0, y, width, 1);
+		}
+	}
+
+	private final void drawCGALine4(byte[] buffer, int offset, int[] dest, int index) {
+		int[] colors = cgaColors;
+		for(int end = offset + CGA_LINE_BYTES; offset < end; offset++) {
+			int data = buffer[offset];
+			dest[index++] = colors[(data >>> 6) & 3];
+			dest[index++] = colors[(data >>> 4) & 3];
+			dest[index++] = colors[(data >>> 2) & 3];
+			dest[index++] = colors[data & 3];
+		}
+	}
+
+	private final void drawCGALine2(byte[] buffer, int offset, int[] dest, int index) {
+		int background = cgaColors[0];
+		int foreground = cgaColors[1];
+		for(int end = offset + CGA_LINE_BYTES; offset < end; offset++) {
+			int data = buffer[offset];
+			for(int bit = 7; bit >= 0; bit--)
+				dest[index++] = ((data >>> bit) & 1) != 0 ? foreground : background;
+		}
+	}
+
+	/*
+	 * Picks the colours of the current graphics mode from the colour select register: in 320x200 the low nibble is
+	 * the background, bit 4 the intensity and bit 5 (or the mode control B/W bit) the palette; in 640x200 the low
+	 * nibble is the foreground on black.
+	 */
+	private final boolean updateCGAPalette(GraphicsDisplay device) {
+		int generation = paletteGeneration;
+		if((generation == cgaGeneration) && (device == cgaDevice))
+			return false;
+		cgaGeneration = generation;
+		cgaDevice = device;
+
+		boolean changed;
+		if(mode == 2) {
+			changed = setCGAColor(device, 0, 0);
+			changed |= setCGAColor(device, 1, colorSelect & 0xf);
+		} else {
+			int bright = (colorSelect & 0x10) != 0 ? 8 : 0;
+			int second, third, fourth;
+			if((modeControl & 0x04) != 0) {
+				// black and white burst off: cyan, red, white
+				second = 3;
+				third = 4;
+				fourth = 7;
+			} else if((colorSelect & 0x20) != 0) {
+				second = 3;
+				third = 5;
+				fourth = 7;
+			} else {
+				second = 2;
+				third = 4;
+				fourth = 6;
+			}
+			changed = setCGAColor(device, 0, colorSelect & 0xf);
+			changed |= setCGAColor(device, 1, second | bright);
+			changed |= setCGAColor(device, 2, third | bright);
+			changed |= setCGAColor(device, 3, fourth | bright);
+		}
+		return changed;
+	}
+
+	private final boolean setCGAColor(GraphicsDisplay device, int index, int rgbi) {
+		int rgb = CGA_RGBI[rgbi];
+		int col = device.rgbToPixel(rgb >>> 16, (rgb >>> 8) & 0xff, rgb & 0xff);
+		if(col == cgaColors[index])
+			return false;
+		cgaColors[index] = col;
+		return true;
+	}
+
 	private final void drawBlank(boolean fullUpdate, GraphicsDisplay device) {
 		if(!fullUpdate)
 			return;
@@ -2116,10 +2637,35 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		for(int i = rawBytes.length - 1; i >= 0; i--)
 			rawBytes[i] = black;
 
-		device.dirtyDisplayRegion(0, 0, lastScreenWidth, lastScreenHeight);
+		damage.add(0, 0, lastScreenWidth, lastScreenHeight);
+	}
+
+	/*
+	 * Forces the next palette update to convert again, for when the registers were replaced wholesale.
+	 */
+	private final void invalidatePalettes() {
+		convertedDevice = null;
+		cgaDevice = null;
+	}
+
+	/*
+	 * Both palette updates return early when no colour register was written since lastPalette was filled for the
+	 * same device and layout.
+	 */
+	private final boolean isPaletteConverted(GraphicsDisplay device, int entries) {
+		int generation = paletteGeneration;
+		if((generation == convertedGeneration) && (device == convertedDevice) && (entries == convertedEntries))
+			return true;
+		convertedGeneration = generation;
+		convertedDevice = device;
+		convertedEntries = entries;
+		return false;
 	}
 
 	private final boolean updatePalette16(GraphicsDisplay device) {
+		if(isPaletteConverted(device, 16))
+			return false;
+
 		boolean fullUpdate = false;
 		int[] palette = lastPalette;
 
@@ -2141,6 +2687,9 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 	}
 
 	private final boolean updatePalette256(GraphicsDisplay device) {
+		if(isPaletteConverted(device, 256))
+			return false;
+
 		boolean fullUpdate = false;
 		int[] palette = lastPalette;
 
@@ -2189,27 +2738,12 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 		return (v << 2) | (b << 1) | b;
 	}
 
-	private final void drawGlyph8(int[] buffer, int startOffset, int scanSize, int glyphOffset, int charHeight,
-			int foregroundColor, int backgroundColor) {
-		int xorColor = backgroundColor ^ foregroundColor;
-		scanSize -= 8;
-
-		do {
-			int fontData = characterGenerator.getByte(0xA6E + glyphOffset);
-			// System.out.println("fontData = " + fontData);
-			for(int i = 7; i >= 0; i--) {
-				int pixel = ((-((fontData >>> i) & 1)) & xorColor) ^ backgroundColor;
-				// if(pixel != 0) {
-				// System.out.println("fontData = " +
-				// Integer.toHexString(pixel));
-				// }
-				buffer[startOffset++] = pixel;
-				// buffer[startOffset + scanSize] = pixel;
-				// startOffset++;
-			}
-			glyphOffset += 1;
+	private final void drawGlyph8(int[] buffer, int startOffset, int scanSize, int[] glyph, int charHeight) {
+		int end = charHeight * GlyphCache.GLYPH_WIDTH;
+		for(int row = 0; row < end; row += GlyphCache.GLYPH_WIDTH) {
+			System.arraycopy(glyph, row, buffer, startOffset, GlyphCache.GLYPH_WIDTH);
 			startOffset += scanSize;
-		} while(--charHeight != 0);
+		}
 	}
 
 	private final void drawCursorGlyph8(int[] buffer, int startOffset, int scanSize, int charHeight,
@@ -2287,8 +2821,8 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 			ioportRegistered = true;
 		}
 		if((component instanceof PhysicalAddressSpace) && component.updated()) {
-			((PhysicalAddressSpace) component).mapMemoryRegion(ioRegion, 0xb8000, 16384);
-			characterGenerator = ((PhysicalAddressSpace) component).getReadMemoryBlockAt(0xFFA6E);
+			mapVideoMemory((PhysicalAddressSpace) component);
+			setCharacterGenerator(((PhysicalAddressSpace) component).getReadMemoryBlockAt(0xFFA6E), 0xA6E);
 			for(int i = 0; i < 16; i++) {
 				for(int j = 0; j < 16; j++) {
 					System.out.print(Integer.toHexString(characterGenerator.getByte(i * 16 + j)) + " ");
@@ -2309,8 +2843,8 @@ public class CGAVideoCard extends AbstractPCIDevice implements VideoCard, IOPort
 			ioportRegistered = true;
 		}
 		if((component instanceof PhysicalAddressSpace) && component.initialised()) {
-			((PhysicalAddressSpace) component).mapMemoryRegion(ioRegion, 0xb8000, 16384);
-			characterGenerator = ((PhysicalAddressSpace) component).getReadMemoryBlockAt(0xFFA6E);
+			mapVideoMemory((PhysicalAddressSpace) component);
+			setCharacterGenerator(((PhysicalAddressSpace) component).getReadMemoryBlockAt(0xFFA6E), 0xA6E);
 			for(int i = 0; i < 16; i++) {
 				for(int j = 0; j < 16; j++) {
 					System.out.print(Integer.toHexString(0xff & characterGenerator.getByte(0xA6E + i * 16 + j)) + " ");
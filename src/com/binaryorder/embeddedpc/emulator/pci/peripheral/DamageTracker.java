@@ -0,0 +1,106 @@
+package com.binaryorder.embeddedpc.emulator.pci.peripheral;
+
+import org.jpc.support.GraphicsDisplay;
+
+/**
+ * Collects the display areas changed while drawing one frame and reports them as a few merged rectangles.
+ *
+ * Damage is kept as one horizontal span per scanline. On flush, runs of consecutive scanlines whose spans overlap
+ * become a single rectangle covering the union of the spans, so a full screen of text cells or a block of redrawn
+ * graphics lines ends up as one dirtyDisplayRegion call.
+ */
+class DamageTracker {
+	private int[] minX = new int[0];
+	private int[] maxX = new int[0];
+	private int firstY = Integer.MAX_VALUE;
+	private int lastY = -1;
+	private int rectangles;
+
+	/**
+	 * Marks the given rectangle as changed. Parts left of or above the origin are dropped.
+	 */
+	void add(int x, int y, int width, int height) {
+		if(x < 0) {
+			width += x;
+			x = 0;
+		}
+		if(y < 0) {
+			height += y;
+			y = 0;
+		}
+		if((width <= 0) || (height <= 0))
+			return;
+		int end = y + height;
+		if(end > minX.length)
+			grow(end);
+
+		int right = x + width;
+		for(int row = y; row < end; row++) {
+			if(x < minX[row])
+				minX[row] = x;
+			if(right > maxX[row])
+				maxX[row] = right;
+		}
+		if(y < firstY)
+			firstY = y;
+		if(end - 1 > lastY)
+			lastY = end - 1;
+	}
+
+	private void grow(int rows) {
+		int size = Math.max(rows, minX.length * 2);
+		int[] newMin = new int[size];
+		int[] newMax = new int[size];
+		System.arraycopy(minX, 0, newMin, 0, minX.length);
+		System.arraycopy(maxX, 0, newMax, 0, maxX.length);
+		for(int i = minX.length; i < size; i++)
+			newMin[i] = Integer.MAX_VALUE;
+		minX = newMin;
+		maxX = newMax;
+	}
+
+	boolean isEmpty() {
+		return lastY < 0;
+	}
+
+	/**
+	 * Number of rectangles reported by the last flush.
+	 */
+	int getRectangleCount() {
+		return rectangles;
+	}
+
+	/**
+	 * Reports the merged damage to the device and starts over.
+	 */
+	void flush(GraphicsDisplay device) {
+		rectangles = 0;
+		int row = firstY;
+		while(row <= lastY) {
+			if(maxX[row] == 0) {
+				row++;
+				continue;
+			}
+
+			int top = row;
+			int left = minX[row];
+			int right = maxX[row];
+			clearRow(row++);
+			while((row <= lastY) && (maxX[row] != 0) && (minX[row] < right) && (maxX[row] > left)) {
+				left = Math.min(left, minX[row]);
+				right = Math.max(right, maxX[row]);
+				clearRow(row++);
+			}
+
+			device.dirtyDisplayRegion(left, top, right - left, row - top);
+			rectangles++;
+		}
+		firstY = Integer.MAX_VALUE;
+		lastY = -1;
+	}
+
+	private void clearRow(int row) {
+		minX[row] = Integer.MAX_VALUE;
+		maxX[row] = 0;
+	}
+}
@@ -0,0 +1,99 @@
+package com.binaryorder.embeddedpc.emulator.pci.peripheral;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jpc.emulator.memory.Memory;
+
+/**
+ * Text mode glyphs expanded to ready-made pixel rows, per character and foreground/background colour pair.
+ *
+ * The font is copied out of the character generator ROM on first use, so drawing a cell no longer goes through
+ * Memory.getByte for every scanline. Glyphs are expanded lazily. The cache is dropped when the font memory is
+ * replaced and should be cleared when the palette changes, which otherwise would only leave stale colour pairs
+ * behind.
+ */
+class GlyphCache {
+	static final int GLYPH_COUNT = 128;
+	static final int GLYPH_WIDTH = 8;
+
+	// colour pairs kept before the cache starts over; text screens rarely use more than a handful
+	private static final int MAX_COLOUR_PAIRS = 64;
+
+	private final int charHeight;
+	private Memory font;
+	private int fontOffset;
+	private byte[] fontData;
+
+	private final Map<Long, int[][]> glyphs = new HashMap<Long, int[][]>();
+	private long lastKey;
+	private int[][] lastGlyphs;
+
+	GlyphCache(int charHeight) {
+		this.charHeight = charHeight;
+	}
+
+	/**
+	 * Points the cache at the font; glyph i starts at offset + i * charHeight in the given memory.
+	 */
+	void setFont(Memory font, int offset) {
+		this.font = font;
+		fontOffset = offset;
+		fontData = null;
+		clear();
+	}
+
+	void clear() {
+		glyphs.clear();
+		lastGlyphs = null;
+	}
+
+	/**
+	 * Returns charHeight rows of GLYPH_WIDTH pixels each. The array is shared and must not be modified.
+	 */
+	int[] getGlyph(int character, int foregroundColor, int backgroundColor) {
+		long key = ((long) foregroundColor << 32) | (0xffffffffL & backgroundColor);
+		int[][] colourGlyphs = lastGlyphs;
+		if((colourGlyphs == null) || (key != lastKey)) {
+			colourGlyphs = glyphs.get(Long.valueOf(key));
+			if(colourGlyphs == null) {
+				if(glyphs.size() >= MAX_COLOUR_PAIRS)
+					glyphs.clear();
+				colourGlyphs = new int[GLYPH_COUNT][];
+				glyphs.put(Long.valueOf(key), colourGlyphs);
+			}
+			lastKey = key;
+			lastGlyphs = colourGlyphs;
+		}
+
+		character &= GLYPH_COUNT - 1;
+		int[] glyph = colourGlyphs[character];
+		if(glyph == null) {
+			glyph = expand(character, foregroundColor, backgroundColor);
+			colourGlyphs[character] = glyph;
+		}
+		return glyph;
+	}
+
+	private int[] expand(int character, int foregroundColor, int backgroundColor) {
+		if(fontData == null)
+			loadFont();
+
+		int xorColor = backgroundColor ^ foregroundColor;
+		int[] glyph = new int[charHeight * GLYPH_WIDTH];
+		int index = 0;
+		for(int row = 0; row < charHeight; row++) {
+			int data = fontData[character * charHeight + row];
+			for(int i = GLYPH_WIDTH - 1; i >= 0; i--)
+				glyph[index++] = ((-((data >>> i) & 1)) & xorColor) ^ backgroundColor;
+		}
+		return glyph;
+	}
+
+	private void loadFont() {
+		byte[] data = new byte[GLYPH_COUNT * charHeight];
+		for(int i = 0; i < data.length; i++)
+			data[i] = font.getByte(fontOffset + i);
+		fontData = data;
+	}
+}
@@ -0,0 +1,12 @@
+package com.binaryorder.embeddedpc.emulator.pci.peripheral;
+
+/**
+ * Receives the text mode rows of a CGAVideoCard that changed since the last check.
+ */
+public interface TextChangeListener {
+	/**
+	 * @param cells the cells of the row, character in the low byte and attribute in the high byte; the array is
+	 *            reused for the next row and must be copied to be kept
+	 */
+	void textRowChanged(int row, int[] cells);
+}
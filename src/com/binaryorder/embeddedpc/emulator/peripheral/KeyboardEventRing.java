@@ -0,0 +1,71 @@
+package com.binaryorder.embeddedpc.emulator.peripheral;
+
+/**
+ * Lock-free byte ring from one host input thread to the emulation thread.
+ *
+ * Only the producer moves tail and only the consumer moves head; both are volatile, so writing tail publishes the
+ * byte stored before it and writing head hands the slot back. The counters run freely and are masked on access,
+ * which keeps full and empty apart without a spare slot. Neither side ever takes a monitor. A full ring makes the
+ * producer yield for a bounded time only, since the emulation thread may be paused and never catch up.
+ */
+class KeyboardEventRing {
+	private final byte[] buffer;
+	private final int mask;
+	// next slot to write, moved by the producer only
+	private volatile int tail;
+	// next slot to read, moved by the consumer only
+	private volatile int head;
+
+	KeyboardEventRing(int capacity) {
+		if((capacity <= 0) || ((capacity & (capacity - 1)) != 0))
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		buffer = new byte[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Producer side: appends one byte, waiting up to <code>timeoutNanos</code> while the ring is full. Returns false
+	 * if the byte was not added.
+	 */
+	boolean offer(byte data, long timeoutNanos) {
+		int position = tail;
+		if(position - head == buffer.length) {
+			long deadline = System.nanoTime() + timeoutNanos;
+			while(position - head == buffer.length) {
+				if(System.nanoTime() - deadline >= 0)
+					return false;
+				Thread.yield();
+			}
+		}
+		buffer[position & mask] = data;
+		tail = position + 1;
+		return true;
+	}
+
+	/**
+	 * Consumer side: removes the oldest byte and returns it as 0-255, or -1 when the ring is empty.
+	 */
+	int poll() {
+		int position = head;
+		if(position == tail)
+			return -1;
+		int data = 0xff & buffer[position & mask];
+		head = position + 1;
+		return data;
+	}
+
+	/**
+	 * Consumer side: drops everything in the ring.
+	 */
+	void clear() {
+		head = tail;
+	}
+
+	boolean isEmpty() {
+		return head == tail;
+	}
+
+	int size() {
+		return tail - head;
+	}
+}
@@ -128,6 +128,10 @@ public class ProgrammablePeripheralInterface extends AbstractHardwareComponent i
 	private InterruptController irqDevice = null;
 
 	private KeyboardQueue queue;
+	// scan codes from the host, released to the guest by pollHostInput
+	private final KeyboardEventRing hostInput = new KeyboardEventRing(KBD_RING_SIZE);
+	// codes dropped because the emulation did not take them in time, written by the host input thread only
+	private volatile int droppedKeyEvents;
 
 	public ProgrammablePeripheralInterface(int memorySize) {
 		memorySize /= 128 * 1024;
@@ -277,8 +281,8 @@ public class ProgrammablePeripheralInterface extends AbstractHardwareComponent i
 
 	@Override
 	public void reset() {
-		// TODO Auto-generated method stub
-
+		// keys pressed before the reset mean nothing to the new session
+		hostInput.clear();
 	}
 
 	@Override
@@ -346,10 +350,33 @@ public class ProgrammablePeripheralInterface extends AbstractHardwareComponent i
 
 	}
 
+	/*
+	 * Called on the host input thread; the emulation thread picks the code up in pollHostInput.
+	 */
 	void putKeyboardEvent(byte keycode) {
 		// pc->ppi_port_a[1] = pc->key_buf[pc->key_i];
 		// e8259_set_irq1 (&pc->pic, 1);
-		queue.writeData(keycode);
+		// never hold up the host input thread for long: while emulation is paused nothing drains the ring
+		if(!hostInput.offer(keycode, KBD_OFFER_NANOS))
+			droppedKeyEvents++;
+	}
+
+	/**
+	 * Number of scan codes from the host dropped because the ring to the emulation thread was full.
+	 */
+	public int getDroppedKeyEvents() {
+		return droppedKeyEvents;
+	}
+
+	/**
+	 * Moves host key events to the keyboard, on the emulation thread. A code is released only after the guest has
+	 * read the previous one from port A, so each gets its own IRQ 1 and the INT 09 handler, which clears the
+	 * keyboard through port B after every read, never loses a code.
+	 */
+	public void pollHostInput() {
+		if((queue.length != 0) || hostInput.isEmpty())
+			return;
+		queue.writeData((byte) hostInput.poll());
 	}
 
 	public void keyReleased(byte scancode) {
@@ -362,6 +389,8 @@ public class ProgrammablePeripheralInterface extends AbstractHardwareComponent i
 	}
 
 	private static final int KBD_QUEUE_SIZE = 256;
+	private static final int KBD_RING_SIZE = 1024;
+	private static final long KBD_OFFER_NANOS = 10 * 1000 * 1000; // 10 ms
 
 	private class KeyboardQueue {
 		private byte[] data;
@@ -435,7 +464,7 @@ public class ProgrammablePeripheralInterface extends AbstractHardwareComponent i
 		}
 	}
 
-	private synchronized void updateIRQ() {
+	private void updateIRQ() {
 		int irq1Level = 0;
 		// status = (byte) (status & ~(KBD_STAT_OBF | KBD_STAT_MOUSE_OBF));
 		if(queue.length != 0) {
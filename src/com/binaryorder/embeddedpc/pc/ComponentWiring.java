@@ -0,0 +1,186 @@
+package com.binaryorder.embeddedpc.pc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.jpc.emulator.HardwareComponent;
+
+/**
+ * Connects the HardwareComponents of a machine along declared dependencies instead of offering every component to
+ * every other one until nothing changes.
+ *
+ * Each rule names a component type and the types it has to be offered. The parts are visited in dependency order and
+ * are only offered the parts they depend on; a second pass settles dependency cycles. Parts without a rule depend on
+ * all other parts. Should a part still not be connected after that (a rule that misses something), it goes through
+ * the old offer-everything rounds, so a wrong rule costs time but never breaks the machine. That is logged as a
+ * warning and counted, see {@link #getFallbacks()}.
+ */
+class ComponentWiring {
+	private static final int TARGETED_PASSES = 2;
+	private static final int MAX_ROUNDS = 100;
+
+	private final HardwareComponent[] parts;
+	private final HardwareComponent[][] dependencies;
+	private final HardwareComponent[] order;
+	// parts that needed the offer-everything rounds
+	private int fallbacks;
+
+	/**
+	 * @param rules each row holds a component type followed by the types it depends on; the first matching row
+	 *            wins
+	 */
+	ComponentWiring(HardwareComponent[] parts, Class<?>[][] rules) {
+		this.parts = parts;
+		dependencies = new HardwareComponent[parts.length][];
+		boolean[][] edges = new boolean[parts.length][parts.length];
+
+		for(int j = 0; j < parts.length; j++) {
+			Class<?>[] rule = findRule(parts[j], rules);
+			List<HardwareComponent> deps = new ArrayList<HardwareComponent>();
+			for(int i = 0; i < parts.length; i++) {
+				if((i != j) && ((rule == null) || matches(parts[i], rule))) {
+					deps.add(parts[i]);
+					edges[j][i] = true;
+				}
+			}
+			dependencies[j] = deps.toArray(new HardwareComponent[deps.size()]);
+		}
+
+		order = sort(edges);
+	}
+
+	private static Class<?>[] findRule(HardwareComponent part, Class<?>[][] rules) {
+		for(int i = 0; i < rules.length; i++) {
+			if(rules[i][0].isInstance(part))
+				return rules[i];
+		}
+		return null;
+	}
+
+	private static boolean matches(HardwareComponent part, Class<?>[] rule) {
+		for(int i = 1; i < rule.length; i++) {
+			if(rule[i].isInstance(part))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Kahn's algorithm, taking parts in array order whenever there is a choice. When only parts on a cycle are left
+	 * the first of them is taken anyway; the second targeted pass connects it once the rest of the cycle is up.
+	 */
+	private HardwareComponent[] sort(boolean[][] edges) {
+		int n = parts.length;
+		int[] pending = new int[n];
+		for(int j = 0; j < n; j++) {
+			for(int i = 0; i < n; i++) {
+				if(edges[j][i])
+					pending[j]++;
+			}
+		}
+
+		HardwareComponent[] result = new HardwareComponent[n];
+		boolean[] placed = new boolean[n];
+		for(int count = 0; count < n; count++) {
+			int next = -1;
+			for(int j = 0; j < n; j++) {
+				if(placed[j])
+					continue;
+				if(pending[j] == 0) {
+					next = j;
+					break;
+				}
+				if(next < 0)
+					next = j;
+			}
+
+			placed[next] = true;
+			result[count] = parts[next];
+			for(int k = 0; k < n; k++) {
+				if(edges[k][next])
+					pending[k]--;
+			}
+		}
+		return result;
+	}
+
+	private HardwareComponent[] dependenciesOf(HardwareComponent part) {
+		for(int j = 0; j < parts.length; j++) {
+			if(parts[j] == part)
+				return dependencies[j];
+		}
+		return parts;
+	}
+
+	/**
+	 * Offers each part its dependencies through acceptComponent.
+	 */
+	boolean initialise() {
+		return connect(false);
+	}
+
+	/**
+	 * Offers each part its dependencies through updateComponent, after a state load.
+	 */
+	boolean update() {
+		return connect(true);
+	}
+
+	private boolean connect(boolean update) {
+		for(int pass = 0; (pass < TARGETED_PASSES) && !isConnected(update); pass++) {
+			for(HardwareComponent part : order) {
+				if(isConnected(part, update))
+					continue;
+				for(HardwareComponent dep : dependenciesOf(part))
+					offer(part, dep, update);
+			}
+		}
+
+		for(int round = 0; (round < MAX_ROUNDS) && !isConnected(update); round++) {
+			for(HardwareComponent part : order) {
+				if(isConnected(part, update))
+					continue;
+				if(round == 0) {
+					fallbacks++;
+					Logger.getLogger("PC").warning("Wiring rule misses a dependency of " + part.getClass().getName());
+				}
+				for(int i = 0; i < parts.length; i++)
+					offer(part, parts[i], update);
+			}
+		}
+
+		if(!isConnected(update)) {
+			for(int i = 0; i < parts.length; i++)
+				Logger.getLogger("PC").info("Part " + i + " (" + parts[i].getClass() + ") " + isConnected(parts[i], update));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Number of times a part was not connected by its rule and had to be offered every other part.
+	 */
+	int getFallbacks() {
+		return fallbacks;
+	}
+
+	private static void offer(HardwareComponent part, HardwareComponent dep, boolean update) {
+		if(update)
+			part.updateComponent(dep);
+		else
+			part.acceptComponent(dep);
+	}
+
+	private static boolean isConnected(HardwareComponent part, boolean update) {
+		return update ? part.updated() : part.initialised();
+	}
+
+	private boolean isConnected(boolean update) {
+		for(int i = 0; i < parts.length; i++) {
+			if(!isConnected(parts[i], update))
+				return false;
+		}
+		return true;
+	}
+}
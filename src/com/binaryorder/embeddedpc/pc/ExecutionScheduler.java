@@ -0,0 +1,130 @@
+package com.binaryorder.embeddedpc.pc;
+
+/**
+ * Sizes the slices run by {@link IbmPC#execute()}.
+ *
+ * In adaptive mode the instruction budget of the next slice is derived from the measured instructions per second, so
+ * that a slice takes roughly the target time whatever code the guest is running. A fixed budget can be set instead,
+ * e.g. for batch runs where wall-clock pacing does not matter.
+ */
+public class ExecutionScheduler {
+	public static final long DEFAULT_SLICE_NANOS = 2 * 1000 * 1000; // 2 ms
+
+	private static final int MIN_SLICE_INSTRUCTIONS = 1000;
+	private static final int MAX_SLICE_INSTRUCTIONS = 50 * 1000 * 1000;
+	private static final int INITIAL_SLICE_INSTRUCTIONS = 20000;
+
+	// weight of the newest measurement in the moving average, as a shift (1/8)
+	private static final int AVERAGE_SHIFT = 3;
+
+	private long targetSliceNanos;
+	private int fixedBudget;
+
+	private int sliceBudget;
+	private long instructionsPerSecond;
+
+	private long totalInstructions;
+	private long totalNanos;
+	private long sliceCount;
+
+	public ExecutionScheduler() {
+		this(DEFAULT_SLICE_NANOS);
+	}
+
+	public ExecutionScheduler(long targetSliceNanos) {
+		setTargetSliceNanos(targetSliceNanos);
+		reset();
+	}
+
+	public void reset() {
+		sliceBudget = INITIAL_SLICE_INSTRUCTIONS;
+		instructionsPerSecond = 0;
+		totalInstructions = 0;
+		totalNanos = 0;
+		sliceCount = 0;
+	}
+
+	public void setTargetSliceNanos(long nanos) {
+		if(nanos <= 0)
+			throw new IllegalArgumentException("slice length must be positive: " + nanos);
+		targetSliceNanos = nanos;
+	}
+
+	public long getTargetSliceNanos() {
+		return targetSliceNanos;
+	}
+
+	/**
+	 * Switches to a fixed number of instructions per slice. A budget of 0 switches back to adaptive slicing.
+	 */
+	public void setFixedBudget(int instructions) {
+		if(instructions < 0)
+			throw new IllegalArgumentException("negative instruction budget: " + instructions);
+		fixedBudget = instructions;
+	}
+
+	public boolean isAdaptive() {
+		return fixedBudget == 0;
+	}
+
+	public int getSliceBudget() {
+		if(fixedBudget != 0)
+			return fixedBudget;
+		return sliceBudget;
+	}
+
+	/**
+	 * Returns the System.nanoTime() value after which a slice started at <code>start</code> should hand back control,
+	 * or <code>Long.MAX_VALUE</code> when slices are bounded by instruction count only.
+	 */
+	public long getDeadline(long start) {
+		if(fixedBudget != 0)
+			return Long.MAX_VALUE;
+		return start + targetSliceNanos;
+	}
+
+	public void sliceFinished(int instructions, long elapsedNanos) {
+		sliceCount++;
+		totalInstructions += instructions;
+		totalNanos += elapsedNanos;
+
+		if((instructions <= 0) || (elapsedNanos <= 0))
+			return;
+
+		long measured = instructions * 1000000000L / elapsedNanos;
+		if(instructionsPerSecond == 0)
+			instructionsPerSecond = measured;
+		else
+			instructionsPerSecond += (measured - instructionsPerSecond) >> AVERAGE_SHIFT;
+
+		long budget = instructionsPerSecond * targetSliceNanos / 1000000000L;
+		if(budget < MIN_SLICE_INSTRUCTIONS)
+			budget = MIN_SLICE_INSTRUCTIONS;
+		else if(budget > MAX_SLICE_INSTRUCTIONS)
+			budget = MAX_SLICE_INSTRUCTIONS;
+		sliceBudget = (int) budget;
+	}
+
+	/**
+	 * Moving average of the emulated instructions per second measured over recent slices.
+	 */
+	public long getInstructionsPerSecond() {
+		return instructionsPerSecond;
+	}
+
+	public long getTotalInstructions() {
+		return totalInstructions;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public long getSliceCount() {
+		return sliceCount;
+	}
+
+	public String toString() {
+		return "ExecutionScheduler [budget: " + getSliceBudget() + ", " + (instructionsPerSecond / 1000) / 1000.0 + " MIPS]";
+	}
+}
@@ -1,10 +1,20 @@
 package com.binaryorder.embeddedpc.pc;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.logging.Logger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -16,6 +26,7 @@ import org.jpc.emulator.memory.AddressSpace;
 import org.jpc.emulator.memory.LazyCodeBlockMemory;
 import org.jpc.emulator.memory.LazyMemory;
 import org.jpc.emulator.memory.LinearAddressSpace;
+import org.jpc.emulator.memory.Memory;
 import org.jpc.emulator.memory.PhysicalAddressSpace;
 import org.jpc.emulator.memory.codeblock.CodeBlock;
 import org.jpc.emulator.motherboard.DMAController;
@@ -43,13 +54,66 @@ import org.jpc.support.BlockDevice;
 import org.jpc.support.Clock;
 import org.jpc.support.DriveSet;
 
+import com.binaryorder.embeddedpc.emulator.memory.CopyOnWriteMemory;
+import com.binaryorder.embeddedpc.emulator.memory.DirtyTrackingMemory;
+import com.binaryorder.embeddedpc.emulator.memory.ForwardingMemory;
+import com.binaryorder.embeddedpc.emulator.motherboard.CascadedInterruptController;
+import com.binaryorder.embeddedpc.emulator.motherboard.IOPortProfile;
+import com.binaryorder.embeddedpc.emulator.motherboard.InterruptMetrics;
+import com.binaryorder.embeddedpc.emulator.motherboard.ProfilingIOPortHandler;
 import com.binaryorder.embeddedpc.emulator.motherboard.SingleInterruptController;
 import com.binaryorder.embeddedpc.emulator.pci.peripheral.CGAVideoCard;
 import com.binaryorder.embeddedpc.emulator.peripheral.ProgrammablePeripheralInterface;
 
 public class IbmPC implements PC {
+	public static final String BIOS_IMAGE = "resources/bios/bios81.bin";
+	// set to true to count and time all I/O port accesses, the report is printed on exit
+	public static final String IO_PROFILE_PROPERTY = "ec1840.ioprofile";
+	// set to true to draw the screen only when a frame is asked for through CGAVideoCard.renderFrame. Nothing here
+	// calls it: whoever embeds the machine must, or the display stays blank
+	public static final String RENDER_ON_DEMAND_PROPERTY = "ec1840.renderondemand";
+	// set to true to give the video card the VGA memory window and VBE ports instead of the plain CGA buffer
+	public static final String VGA_COMPATIBILITY_PROPERTY = "ec1840.vgacompat";
+	// set to true to draw the screen in horizontal bands on a shared thread pool
+	public static final String PARALLEL_RENDER_PROPERTY = "ec1840.parallelrender";
+	// set to true for a master and slave 8259 pair (IRQs 0-15) instead of the single EC-1840 controller
+	public static final String CASCADED_PIC_PROPERTY = "ec1840.cascadedpic";
+	// set to true to count IRQs and time their latency, see getInterruptMetrics
+	public static final String IRQ_METRICS_PROPERTY = "ec1840.irqmetrics";
+
 	private static final int SYS_REAL_RAM_SIZE = 512 * 1024;
 	private static final int SYS_RAM_SIZE = 1024 * 1024;
+	private static final int DEADLINE_CHECK_MASK = 0x3f;
+
+	private static final String CHECKPOINT_PARENT = "checkpoint.parent";
+	private static final String CHECKPOINT_MEMORY = "checkpoint.memory";
+	private static final String SECTION_MEMORY = "memory";
+
+	// component type, followed by the types it has to be offered (see ComponentWiring)
+	private static final Class<?>[][] WIRING = {
+			{ Clock.class },
+			{ DriveSet.class },
+			{ IOPortHandler.class },
+			{ PhysicalAddressSpace.class, LinearAddressSpace.class, GateA20Handler.class },
+			{ LinearAddressSpace.class, PhysicalAddressSpace.class, Processor.class },
+			{ Processor.class, Clock.class, PhysicalAddressSpace.class, LinearAddressSpace.class, IOPortHandler.class, InterruptController.class },
+			{ InterruptController.class, Processor.class, IOPortHandler.class, Clock.class },
+			{ DMAController.class, IOPortHandler.class, PhysicalAddressSpace.class },
+			{ ProgrammablePeripheralInterface.class, IOPortHandler.class, IntervalTimer.class, InterruptController.class },
+			{ RTC.class, IOPortHandler.class, InterruptController.class, Clock.class, DriveSet.class },
+			{ IntervalTimer.class, IOPortHandler.class, InterruptController.class, Clock.class },
+			{ GateA20Handler.class, IOPortHandler.class, PhysicalAddressSpace.class, LinearAddressSpace.class, Processor.class },
+			{ PCIHostBridge.class, IOPortHandler.class, PCIBus.class },
+			{ PCIISABridge.class, PCIBus.class, InterruptController.class },
+			{ PCIBus.class, IOPortHandler.class, PhysicalAddressSpace.class, PCIHostBridge.class, PCIISABridge.class },
+			{ PIIX3IDEInterface.class, PCIBus.class, IOPortHandler.class, InterruptController.class, DriveSet.class, Clock.class },
+			{ EthernetCard.class, PCIBus.class, IOPortHandler.class, InterruptController.class },
+			{ SerialPort.class, IOPortHandler.class, InterruptController.class },
+			{ FloppyController.class, IOPortHandler.class, DMAController.class, InterruptController.class, DriveSet.class, Clock.class },
+			{ PCSpeaker.class, IOPortHandler.class, IntervalTimer.class, Clock.class },
+			{ SystemBIOS.class, PhysicalAddressSpace.class },
+			// the BIOS has to be loaded before the card looks up the character generator in ROM
+			{ CGAVideoCard.class, IOPortHandler.class, PhysicalAddressSpace.class, SystemBIOS.class } };
 
 	private Processor processor;
 	private IOPortHandler ioportHandler;
@@ -78,11 +142,22 @@ public class IbmPC implements PC {
 	private DriveSet drives;
 
 	private SystemBIOS sysBIOS;
+	private ROMLayout romLayout;
 
 	private HardwareComponent[] myParts;
 
+	private ComponentWiring wiring;
+
 	private KeyMapping keyMapping;;
 
+	private ExecutionScheduler scheduler;
+
+	private Map<HardwareComponent, byte[]> checkpointStates;
+
+	// profiles reported at exit by a single hook; weak, so that the report does not keep discarded machines alive
+	private static final Map<ProfilingIOPortHandler, Boolean> ioProfiles = new WeakHashMap<ProfilingIOPortHandler, Boolean>();
+	private static boolean ioProfileHookAdded;
+
 	public IbmPC(Clock clock, DriveSet drives) throws IOException {
 		this.drives = drives;
 		processor = new Processor();
@@ -97,8 +172,15 @@ public class IbmPC implements PC {
 			physicalAddr.allocateMemory(i, new LazyMemory(AddressSpace.BLOCK_SIZE));
 
 		linearAddr = new LinearAddressSpace();
-		ioportHandler = new IOPortHandler();
-		irqController = new SingleInterruptController();
+		if(Boolean.getBoolean(IO_PROFILE_PROPERTY))
+			enableIOProfile();
+		else
+			ioportHandler = new IOPortHandler();
+		if(Boolean.getBoolean(CASCADED_PIC_PROPERTY))
+			irqController = new CascadedInterruptController();
+		else
+			irqController = new SingleInterruptController();
+		((SingleInterruptController) irqController).setMetricsEnabled(Boolean.getBoolean(IRQ_METRICS_PROPERTY));
 		primaryDMA = new DMAController(false, true);
 		secondaryDMA = new DMAController(false, false);
 
@@ -111,7 +193,9 @@ public class IbmPC implements PC {
 		// Peripherals
 		ideInterface = new PIIX3IDEInterface();
 		networkCard = new EthernetCard();
-		graphicsCard = new CGAVideoCard();
+		graphicsCard = new CGAVideoCard(Boolean.getBoolean(VGA_COMPATIBILITY_PROPERTY));
+		graphicsCard.setRenderOnDemand(Boolean.getBoolean(RENDER_ON_DEMAND_PROPERTY));
+		graphicsCard.setParallelRendering(Boolean.getBoolean(PARALLEL_RENDER_PROPERTY));
 
 		serialDevice0 = new SerialPort(0);
 		fdc = new FloppyController(FloppyController.FloppyDrive.DRIVE_120);
@@ -123,12 +207,15 @@ public class IbmPC implements PC {
 		pciBus = new PCIBus();
 
 		keyMapping = new EC1840KeyMapping();
+		scheduler = new ExecutionScheduler();
 
 		// BIOSes
-		sysBIOS = new SystemBIOS("resources/bios/bios81.bin");
+		sysBIOS = new SystemBIOS(BIOS_IMAGE);
+		romLayout = ROMLayout.forImage(BIOS_IMAGE);
 
 		myParts = new HardwareComponent[] { processor, vmClock, physicalAddr, linearAddr, ioportHandler, irqController, primaryDMA, secondaryDMA, ppi, rtc, pit, gateA20,
 				pciHostBridge, pciISABridge, pciBus, ideInterface, drives, networkCard, serialDevice0, fdc, speaker, sysBIOS, graphicsCard };
+		wiring = new ComponentWiring(myParts, WIRING);
 
 		if(!configure())
 			throw new IllegalStateException("PC Configuration failed");
@@ -146,6 +233,9 @@ public class IbmPC implements PC {
 
 	public void dispose() {
 		stop();
+		synchronized(ioProfiles) {
+			ioProfiles.remove(ioportHandler);
+		}
 		LazyCodeBlockMemory.dispose();
 	}
 
@@ -172,26 +262,8 @@ public class IbmPC implements PC {
 	}
 
 	private boolean configure() {
-		boolean fullyInitialised;
-		int count = 0;
-		do {
-			fullyInitialised = true;
-			for(int j = 0; j < myParts.length; j++) {
-				if(myParts[j].initialised() == false) {
-					for(int i = 0; i < myParts.length; i++)
-						myParts[j].acceptComponent(myParts[i]);
-
-					fullyInitialised &= myParts[j].initialised();
-				}
-			}
-			count++;
-		} while((fullyInitialised == false) && (count < 100));
-
-		if(count == 100) {
-			for(int i = 0; i < myParts.length; i++)
-				Logger.getLogger("PC").info("Part " + i + " (" + myParts[i].getClass() + ") " + myParts[i].initialised());
+		if(!wiring.initialise())
 			return false;
-		}
 
 		for(int i = 0; i < myParts.length; i++) {
 			if(myParts[i] instanceof PCIBus)
@@ -201,6 +273,180 @@ public class IbmPC implements PC {
 		return true;
 	}
 
+	/**
+	 * Starts tracking which RAM blocks and components change, so that {@link #saveCheckpoint(ZipOutputStream, String)}
+	 * can write only those. Changes are counted from the last full or incremental save, or from now.
+	 */
+	public void enableCheckpoints() {
+		checkpointStates = new IdentityHashMap<HardwareComponent, byte[]>();
+		for(int address = 0; address < SYS_RAM_SIZE; address += AddressSpace.BLOCK_SIZE) {
+			if(!isRAMBlock(address))
+				continue;
+			Memory block = physicalAddr.getReadMemoryBlockAt(address);
+			if(!(block instanceof DirtyTrackingMemory))
+				physicalAddr.allocateMemory(address, new DirtyTrackingMemory(block));
+		}
+		try {
+			rebaseCheckpoints();
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void rebaseCheckpoints() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for(HardwareComponent component : stateComponents()) {
+			if(component == physicalAddr)
+				continue;
+			bytes.reset();
+			component.dumpState(new DataOutputStream(bytes));
+			checkpointStates.put(component, bytes.toByteArray());
+		}
+
+		for(int address = 0; address < SYS_RAM_SIZE; address += AddressSpace.BLOCK_SIZE) {
+			Memory block = physicalAddr.getReadMemoryBlockAt(address);
+			if(block instanceof DirtyTrackingMemory)
+				((DirtyTrackingMemory) block).clean();
+		}
+	}
+
+	/**
+	 * Writes the RAM blocks and components that changed since the previous save into <code>zip</code>. The snapshot
+	 * names <code>parent</code>, the file of the previous save in the same directory, and {@link #loadState(File)}
+	 * loads the whole chain.
+	 */
+	public boolean saveCheckpoint(ZipOutputStream zip, String parent) throws IOException {
+		if(checkpointStates == null)
+			throw new IllegalStateException("Checkpoints not enabled");
+
+		try {
+			zip.putNextEntry(new ZipEntry(CHECKPOINT_PARENT));
+			DataOutputStream out = new DataOutputStream(zip);
+			out.writeUTF(parent);
+			out.flush();
+			zip.closeEntry();
+
+			// the baseline for the next checkpoint only moves once everything is written
+			Map<HardwareComponent, byte[]> changedStates = new IdentityHashMap<HardwareComponent, byte[]>();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for(HardwareComponent component : stateComponents()) {
+				if(component == physicalAddr)
+					continue;
+				bytes.reset();
+				component.dumpState(new DataOutputStream(bytes));
+				byte[] state = bytes.toByteArray();
+				if(Arrays.equals(state, checkpointStates.get(component)))
+					continue;
+				changedStates.put(component, state);
+
+				zip.putNextEntry(new ZipEntry(sectionName(component)));
+				zip.write(state);
+				zip.closeEntry();
+			}
+
+			List<DirtyTrackingMemory> written = new ArrayList<DirtyTrackingMemory>();
+			zip.putNextEntry(new ZipEntry(CHECKPOINT_MEMORY));
+			byte[] data = new byte[AddressSpace.BLOCK_SIZE];
+			for(int address = 0; address < SYS_RAM_SIZE; address += AddressSpace.BLOCK_SIZE) {
+				Memory block = physicalAddr.getReadMemoryBlockAt(address);
+				if(!(block instanceof DirtyTrackingMemory) || !((DirtyTrackingMemory) block).isDirty())
+					continue;
+				block.copyContentsInto(0, data, 0, data.length);
+				written.add((DirtyTrackingMemory) block);
+				out.writeInt(address);
+				out.write(data);
+			}
+			out.writeInt(-1);
+			out.flush();
+			zip.closeEntry();
+
+			checkpointStates.putAll(changedStates);
+			for(DirtyTrackingMemory block : written)
+				block.clean();
+		} catch(IOException e) {
+			e.printStackTrace();
+			System.out.println("IO Error during checkpoint save.");
+			return false;
+		}
+
+		return true;
+	}
+
+	private void loadCheckpointMemory(ZipFile zip) throws IOException {
+		ZipEntry entry = zip.getEntry(CHECKPOINT_MEMORY);
+		if(entry == null)
+			return;
+		DataInputStream in = new DataInputStream(zip.getInputStream(entry));
+		byte[] data = new byte[AddressSpace.BLOCK_SIZE];
+		for(int address = in.readInt(); address >= 0; address = in.readInt()) {
+			in.readFully(data);
+			physicalAddr.getReadMemoryBlockAt(address).copyContentsFrom(0, data, 0, data.length);
+		}
+	}
+
+	/**
+	 * Saves the machine into a {@link SnapshotFile}. RAM goes into a single section with one block per
+	 * AddressSpace.BLOCK_SIZE, so that it can be restored with bulk copies.
+	 */
+	public void saveFastState(File f, int compression) throws IOException {
+		SnapshotFile.Writer snapshot = new SnapshotFile.Writer(compression);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for(HardwareComponent component : stateComponents()) {
+			if(component == physicalAddr)
+				continue;
+			bytes.reset();
+			component.dumpState(new DataOutputStream(bytes));
+			snapshot.addSection(sectionName(component), bytes.toByteArray());
+		}
+
+		byte[] memory = new byte[SYS_RAM_SIZE];
+		for(int address = 0; address < SYS_RAM_SIZE; address += AddressSpace.BLOCK_SIZE) {
+			if(isRAMBlock(address))
+				physicalAddr.getReadMemoryBlockAt(address).copyContentsInto(0, memory, address, AddressSpace.BLOCK_SIZE);
+		}
+		snapshot.addSection(SECTION_MEMORY, memory);
+
+		snapshot.write(f);
+		if(checkpointStates != null)
+			rebaseCheckpoints();
+	}
+
+	/**
+	 * Restores a machine saved with {@link #saveFastState(File, int)} into this freshly constructed one.
+	 */
+	public void loadFastState(File f) throws IOException {
+		SnapshotFile snapshot = new SnapshotFile(f);
+		for(HardwareComponent component : stateComponents()) {
+			if(component == physicalAddr)
+				continue;
+			byte[] state = snapshot.getSectionBytes(sectionName(component));
+			if(state != null)
+				restoreComponent(component, new DataInputStream(new ByteArrayInputStream(state)));
+		}
+
+		ByteBuffer memory = snapshot.getSection(SECTION_MEMORY);
+		if(memory != null) {
+			byte[] data = new byte[AddressSpace.BLOCK_SIZE];
+			for(int address = 0; address < SYS_RAM_SIZE; address += AddressSpace.BLOCK_SIZE) {
+				if(!isRAMBlock(address))
+					continue;
+				memory.position(address);
+				memory.get(data);
+				physicalAddr.getReadMemoryBlockAt(address).copyContentsFrom(0, data, 0, data.length);
+			}
+		}
+
+		linkComponents();
+		if(checkpointStates != null)
+			enableCheckpoints();
+	}
+
+	private String sectionName(HardwareComponent component) {
+		if(component == secondaryDMA)
+			return component.getClass().getName() + "2";
+		return component.getClass().getName();
+	}
+
 	public boolean saveState(ZipOutputStream zip) throws IOException {
 		// save state of of Hardware Components
 		// processor DONE (-fpu)
@@ -232,6 +478,9 @@ public class IbmPC implements PC {
 			saveComponent(zip, networkCard);
 			saveComponent(zip, graphicsCard);
 			saveComponent(zip, speaker);
+
+			if(checkpointStates != null)
+				rebaseCheckpoints();
 		} catch(IOException e) {
 			e.printStackTrace();
 			System.out.println("IO Error during state save.");
@@ -261,45 +510,127 @@ public class IbmPC implements PC {
 
 		if(entry != null) {
 			System.out.println("component size " + entry.getSize() + " for " + component.getClass().getName());
-			DataInputStream in = new DataInputStream(zip.getInputStream(entry));
-			if(component instanceof PIIX3IDEInterface)
-				((PIIX3IDEInterface) component).loadIOPorts(ioportHandler, in);
-			else if(component instanceof EthernetCard)
-				((EthernetCard) component).loadIOPorts(ioportHandler, in);
-			else
-				component.loadState(in);
+			restoreComponent(component, new DataInputStream(zip.getInputStream(entry)));
+		}
+	}
 
-			if(component instanceof IOPortCapable) {
-				ioportHandler.registerIOPortCapable((IOPortCapable) component);
-			}
+	private void restoreComponent(HardwareComponent component, DataInputStream in) throws IOException {
+		if(component instanceof PIIX3IDEInterface)
+			((PIIX3IDEInterface) component).loadIOPorts(ioportHandler, in);
+		else if(component instanceof EthernetCard)
+			((EthernetCard) component).loadIOPorts(ioportHandler, in);
+		else
+			component.loadState(in);
+
+		if(component instanceof IOPortCapable) {
+			ioportHandler.registerIOPortCapable((IOPortCapable) component);
 		}
 	}
 
-	private void linkComponents() {
-		boolean fullyInitialised;
-		int count = 0;
-		do {
-			fullyInitialised = true;
-			for(int j = 0; j < myParts.length; j++) {
-				if(myParts[j].updated() == false) {
-					for(int i = 0; i < myParts.length; i++)
-						myParts[j].updateComponent(myParts[i]);
-
-					fullyInitialised &= myParts[j].updated();
-				}
+	/**
+	 * The components holding machine state, in the order they are restored.
+	 */
+	private HardwareComponent[] stateComponents() {
+		return new HardwareComponent[] { drives, vmClock, physicalAddr, linearAddr, processor, irqController, ioportHandler, primaryDMA,
+				secondaryDMA, rtc, pit, gateA20, pciHostBridge, pciISABridge, pciBus, ideInterface, sysBIOS, fdc, serialDevice0, networkCard,
+				graphicsCard, speaker };
+	}
+
+	private boolean isRAMBlock(int address) {
+		if((address < 0) || (address >= romLayout.getStart()))
+			return false;
+		Memory block = physicalAddr.getReadMemoryBlockAt(address);
+		// anything else is a memory mapped device region
+		return (block instanceof LazyMemory) || (block instanceof ForwardingMemory);
+	}
+
+	/**
+	 * Creates a copy of this machine that shares RAM and video memory with it copy-on-write. Only the pages either
+	 * machine writes to afterwards are copied; all other device state is small and copied right away. The child gets
+	 * <code>childDrives</code>, typically built from the same arguments, since disk writes of one machine must not
+	 * reach the images of the other. This machine must not be executing while it is forked.
+	 */
+	public IbmPC fork(Clock clock, DriveSet childDrives) throws IOException {
+		if(childDrives == drives)
+			throw new IllegalArgumentException("Forked machine cannot share the drives of its parent");
+		IbmPC child = new IbmPC(clock, childDrives);
+
+		HardwareComponent[] mine = stateComponents();
+		HardwareComponent[] theirs = child.stateComponents();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for(int i = 0; i < mine.length; i++) {
+			if((mine[i] == drives) || (mine[i] == physicalAddr))
+				continue;
+			bytes.reset();
+			mine[i].dumpState(new DataOutputStream(bytes));
+			child.restoreComponent(theirs[i], new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		}
+
+		for(int address = 0; address < SYS_RAM_SIZE; address += AddressSpace.BLOCK_SIZE) {
+			if(!isRAMBlock(address))
+				continue;
+			Memory block = physicalAddr.getReadMemoryBlockAt(address);
+			// keep checkpoint tracking outermost, so it still sees writes after the block got copied
+			DirtyTrackingMemory tracker = null;
+			if(block instanceof DirtyTrackingMemory) {
+				tracker = (DirtyTrackingMemory) block;
+				block = tracker.getTarget();
 			}
-			count++;
-		} while((fullyInitialised == false) && (count < 100));
 
-		if(count == 100) {
-			for(int i = 0; i < myParts.length; i++)
-				System.out.println("Part " + i + " (" + myParts[i].getClass() + ") " + myParts[i].updated());
+			CopyOnWriteMemory shared;
+			if(block instanceof CopyOnWriteMemory) {
+				shared = (CopyOnWriteMemory) block;
+			} else {
+				shared = new CopyOnWriteMemory(block);
+				if(tracker != null)
+					tracker.setTarget(shared);
+				else
+					physicalAddr.allocateMemory(address, shared);
+			}
+			child.physicalAddr.allocateMemory(address, shared.share());
 		}
+		child.graphicsCard.shareVideoMemory(graphicsCard);
+
+		child.linkComponents();
+		return child;
+	}
+
+	private void linkComponents() {
+		wiring.update();
+	}
+
+	ComponentWiring getWiring() {
+		return wiring;
 	}
 
+	/**
+	 * Restores a snapshot saved with {@link #saveState(ZipOutputStream)} or a chain of checkpoints. A snapshot file
+	 * that is missing or broken, including any parent of a checkpoint, or a chain that loops back on itself fails the
+	 * load with an IOException; the machine must not be run after that.
+	 */
 	public void loadState(File f) throws IOException {
+		loadSnapshot(f, new HashSet<File>());
+
+		linkComponents();
+		if(checkpointStates != null)
+			enableCheckpoints();
+		// pciBus.biosInit();
+	}
+
+	/**
+	 * Loads one snapshot file, after the chain of checkpoints it is based on. <code>visited</code> holds the files
+	 * further down the chain.
+	 */
+	private void loadSnapshot(File f, Set<File> visited) throws IOException {
+		if(!visited.add(f.getCanonicalFile()))
+			throw new IOException("Checkpoint chain loops back to " + f);
+		ZipFile zip = new ZipFile(f);
 		try {
-			ZipFile zip = new ZipFile(f);
+			ZipEntry parent = zip.getEntry(CHECKPOINT_PARENT);
+			if(parent != null) {
+				DataInputStream in = new DataInputStream(zip.getInputStream(parent));
+				loadSnapshot(new File(f.getParentFile(), in.readUTF()), visited);
+			}
 
 			loadComponent(zip, drives);
 			loadComponent(zip, vmClock);
@@ -325,15 +656,9 @@ public class IbmPC implements PC {
 			loadComponent(zip, networkCard);
 			loadComponent(zip, graphicsCard);
 			loadComponent(zip, speaker);
-
-			linkComponents();
-			// pciBus.biosInit();
-
+			loadCheckpointMemory(zip);
+		} finally {
 			zip.close();
-		} catch(IOException e) {
-			e.printStackTrace();
-			System.out.println("IO Error during loading of Snapshot.");
-			return;
 		}
 	}
 
@@ -376,23 +701,91 @@ public class IbmPC implements PC {
 	}
 
 	public final int execute() {
+		int budget = scheduler.getSliceBudget();
+		long start = System.nanoTime();
+		long deadline = scheduler.getDeadline(start);
+
 		int x86Count = 0;
-		AddressSpace addressSpace = null;
-		if(processor.isProtectedMode())
-			addressSpace = linearAddr;
-		else
-			addressSpace = physicalAddr;
+		int blockCount = 0;
+		while(x86Count < budget) {
+			// the mode can change inside any block, so pick the address space every time
+			AddressSpace addressSpace = null;
+			if(processor.isProtectedMode())
+				addressSpace = linearAddr;
+			else
+				addressSpace = physicalAddr;
 
-		// do it multiple times
-		try {
-			for(int i = 0; i < 100; i++)
+			try {
 				x86Count += addressSpace.execute(processor, processor.getInstructionPointer());
-		} catch(ModeSwitchException e) {
+			} catch(ModeSwitchException e) {
+				x86Count++;
+			}
+
+			// reading the time costs more than a short block, so only look now and then
+			if(((++blockCount & DEADLINE_CHECK_MASK) == 0) && (System.nanoTime() - deadline > 0))
+				break;
 		}
 
+		scheduler.sliceFinished(x86Count, System.nanoTime() - start);
+		graphicsCard.checkTextChanges();
+		ppi.pollHostInput();
 		return x86Count;
 	}
 
+	private void enableIOProfile() {
+		ProfilingIOPortHandler profile = new ProfilingIOPortHandler();
+		ioportHandler = profile;
+		synchronized(ioProfiles) {
+			ioProfiles.put(profile, Boolean.TRUE);
+			if(!ioProfileHookAdded) {
+				Runtime.getRuntime().addShutdownHook(new Thread("I/O profile report") {
+					public void run() {
+						printIOProfiles();
+					}
+				});
+				ioProfileHookAdded = true;
+			}
+		}
+	}
+
+	/**
+	 * Prints one report adding up the I/O profiles of all machines not yet disposed of.
+	 */
+	private static void printIOProfiles() {
+		IOPortProfile total = null;
+		int machines = 0;
+		synchronized(ioProfiles) {
+			for(ProfilingIOPortHandler profile : ioProfiles.keySet()) {
+				IOPortProfile snapshot = profile.snapshot();
+				total = (total == null) ? snapshot : total.plus(snapshot);
+				machines++;
+			}
+		}
+		if(total != null)
+			System.out.println("I/O profile of " + machines + " machine(s)\n" + total.report());
+	}
+
+	/**
+	 * Returns the I/O port profile, or null if the machine was built without it.
+	 */
+	public ProfilingIOPortHandler getIOProfile() {
+		if(ioportHandler instanceof ProfilingIOPortHandler)
+			return (ProfilingIOPortHandler) ioportHandler;
+		return null;
+	}
+
+	/**
+	 * Returns a snapshot of the IRQ counters and latencies of the interrupt controller, or null unless the machine was
+	 * built with {@link #IRQ_METRICS_PROPERTY} set.
+	 */
+	public InterruptMetrics getInterruptMetrics() {
+		return ((SingleInterruptController) irqController).getMetrics();
+	}
+
+	public ExecutionScheduler getScheduler() {
+		return scheduler;
+	}
+
 	public final CodeBlock decodeCodeBlockAt(int address) {
 		AddressSpace addressSpace = null;
 		if(processor.isProtectedMode())
@@ -0,0 +1,119 @@
+package com.binaryorder.embeddedpc.pc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jpc.support.Clock;
+import org.jpc.support.DriveSet;
+
+/**
+ * Runs many IbmPC instances on a fixed pool of worker threads, one thread per core by default.
+ *
+ * Each machine keeps its own RAM and ROM memory blocks, so no memory is ever touched by two workers at once. Each
+ * machine is executed by a single task that runs a few slices and then re-queues itself, so machines take turns when
+ * there are more of them than workers.
+ */
+public class IbmPCFarm {
+	private static final int SLICES_PER_TURN = 16;
+
+	private final ExecutorService workers;
+	private final List<IbmPC> machines = new ArrayList<IbmPC>();
+	private final Map<IbmPC, Throwable> failures = Collections.synchronizedMap(new IdentityHashMap<IbmPC, Throwable>());
+
+	private volatile boolean running;
+
+	public IbmPCFarm() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public IbmPCFarm(int workerCount) {
+		workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "IbmPCFarm worker-" + (count++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public IbmPC createPC(String[] args, Clock clock) throws IOException {
+		IbmPC pc = new IbmPC(clock, DriveSet.buildFromArgs(args));
+		add(pc);
+		return pc;
+	}
+
+	public synchronized void add(IbmPC pc) {
+		machines.add(pc);
+		if(running)
+			launch(pc);
+	}
+
+	public synchronized List<IbmPC> getMachines() {
+		return new ArrayList<IbmPC>(machines);
+	}
+
+	public synchronized void start() {
+		if(running)
+			return;
+		running = true;
+		for(IbmPC pc : machines)
+			launch(pc);
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	public void shutdown() throws InterruptedException {
+		stop();
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the exception that stopped the given machine, or null if it did not fail.
+	 */
+	public Throwable getFailure(IbmPC pc) {
+		return failures.get(pc);
+	}
+
+	private void launch(IbmPC pc) {
+		failures.remove(pc);
+		pc.start();
+		workers.execute(new MachineTask(pc));
+	}
+
+	private class MachineTask implements Runnable {
+		private final IbmPC pc;
+
+		MachineTask(IbmPC pc) {
+			this.pc = pc;
+		}
+
+		public void run() {
+			try {
+				for(int i = 0; (i < SLICES_PER_TURN) && running; i++)
+					pc.execute();
+			} catch(Exception e) {
+				failures.put(pc, e);
+				pc.stop();
+				return;
+			}
+
+			if(running)
+				workers.execute(this);
+			else
+				pc.stop();
+		}
+	}
+}
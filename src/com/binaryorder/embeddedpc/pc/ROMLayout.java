@@ -0,0 +1,60 @@
+package com.binaryorder.embeddedpc.pc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jpc.emulator.memory.AddressSpace;
+
+/**
+ * Where a system BIOS image ends up in the address space. Each image is measured once per class loader.
+ *
+ * Nothing else about the ROM is shared between machines: every IbmPC loads the image into ROM memory blocks of its
+ * own, since JPC decodes code into those blocks on first execution without any locking.
+ */
+public class ROMLayout {
+	private static final Map<String, ROMLayout> layouts = new HashMap<String, ROMLayout>();
+
+	private final int romStart;
+
+	private ROMLayout(int length) {
+		// SystemBIOS loads the image so that it ends at the top of the first megabyte
+		romStart = (0x100000 - length) & ~(AddressSpace.BLOCK_SIZE - 1);
+	}
+
+	public static synchronized ROMLayout forImage(String image) throws IOException {
+		ROMLayout layout = layouts.get(image);
+		if(layout == null) {
+			layout = new ROMLayout(imageLength(image));
+			layouts.put(image, layout);
+		}
+		return layout;
+	}
+
+	/**
+	 * First address of the ROM; everything from here to the end of the first megabyte is BIOS.
+	 */
+	public int getStart() {
+		return romStart;
+	}
+
+	private static int imageLength(String image) throws IOException {
+		InputStream in = ROMLayout.class.getClassLoader().getResourceAsStream(image);
+		if(in == null)
+			throw new IOException("ROM image not found: " + image);
+		try {
+			int length = 0;
+			byte[] buffer = new byte[4096];
+			for(int read; (read = in.read(buffer)) > 0;)
+				length += read;
+			return length;
+		} finally {
+			in.close();
+		}
+	}
+
+	public String toString() {
+		return "ROM @ 0x" + Integer.toHexString(romStart);
+	}
+}
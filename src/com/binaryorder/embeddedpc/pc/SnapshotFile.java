@@ -0,0 +1,221 @@
+package com.binaryorder.embeddedpc.pc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Snapshot container made of named sections at fixed offsets, read back through a memory mapped file.
+ *
+ * <pre>
+ * header   "EC1840SS", int version, int compression, int section count
+ * table    per section: unsigned short name length, UTF-8 name, long offset, int stored length, int raw length
+ * sections each starting at a multiple of SECTION_ALIGNMENT
+ * </pre>
+ *
+ * Sections are either stored as they are or compressed with DEFLATE at its fastest level.
+ */
+public class SnapshotFile {
+	public static final int COMPRESSION_NONE = 0;
+	public static final int COMPRESSION_FAST = 1;
+
+	private static final byte[] MAGIC = new byte[] { 'E', 'C', '1', '8', '4', '0', 'S', 'S' };
+	private static final int VERSION = 1;
+	private static final int SECTION_ALIGNMENT = 64;
+
+	private final int compression;
+	private final MappedByteBuffer mapped;
+	private final Map<String, long[]> sections = new LinkedHashMap<String, long[]>();
+
+	public SnapshotFile(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel channel = in.getChannel();
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+
+		try {
+			for(int i = 0; i < MAGIC.length; i++) {
+				if(mapped.get() != MAGIC[i])
+					throw new IOException("Not a snapshot file: " + f);
+			}
+			int version = mapped.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported snapshot version " + version + " in " + f);
+			compression = mapped.getInt();
+			int count = mapped.getInt();
+			for(int i = 0; i < count; i++) {
+				String name = readName(mapped);
+				long offset = mapped.getLong();
+				int stored = mapped.getInt();
+				int raw = mapped.getInt();
+				if((offset < 0) || (stored < 0) || (raw < 0) || (offset + stored > mapped.capacity()))
+					throw new IOException("Truncated snapshot file: " + f);
+				sections.put(name, new long[] { offset, stored, raw });
+			}
+		} catch(BufferUnderflowException e) {
+			throw new IOException("Truncated snapshot file: " + f);
+		}
+	}
+
+	public boolean hasSection(String name) {
+		return sections.containsKey(name);
+	}
+
+	/**
+	 * Returns the uncompressed contents of a section, or null if there is no such section. For uncompressed files
+	 * this is a read-only view of the mapped file.
+	 */
+	public ByteBuffer getSection(String name) throws IOException {
+		long[] section = sections.get(name);
+		if(section == null)
+			return null;
+
+		ByteBuffer stored = mapped.duplicate();
+		stored.position((int) section[0]);
+		stored.limit((int) (section[0] + section[1]));
+		stored = stored.slice();
+		if(compression == COMPRESSION_NONE)
+			return stored;
+
+		byte[] input = new byte[stored.remaining()];
+		stored.get(input);
+		byte[] output = new byte[(int) section[2]];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(input);
+			int done = 0;
+			while(done < output.length) {
+				int n = inflater.inflate(output, done, output.length - done);
+				if((n == 0) && (inflater.finished() || inflater.needsInput()))
+					break;
+				done += n;
+			}
+			if(done != output.length)
+				throw new IOException("Truncated snapshot section " + name);
+		} catch(DataFormatException e) {
+			throw new IOException("Corrupt snapshot section " + name + ": " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(output);
+	}
+
+	public byte[] getSectionBytes(String name) throws IOException {
+		ByteBuffer section = getSection(name);
+		if(section == null)
+			return null;
+		byte[] data = new byte[section.remaining()];
+		section.get(data);
+		return data;
+	}
+
+	private static String readName(ByteBuffer buffer) throws IOException {
+		int length = 0xffff & buffer.getShort();
+		byte[] data = new byte[length];
+		buffer.get(data);
+		return new String(data, "UTF-8");
+	}
+
+	public static class Writer {
+		private final int compression;
+		// UTF-8 names; writeUTF would write modified UTF-8, which differs for NUL and characters outside the BMP
+		private final List<byte[]> names = new ArrayList<byte[]>();
+		private final List<byte[]> stored = new ArrayList<byte[]>();
+		private final List<Integer> rawLengths = new ArrayList<Integer>();
+
+		public Writer(int compression) {
+			if((compression != COMPRESSION_NONE) && (compression != COMPRESSION_FAST))
+				throw new IllegalArgumentException("Unknown compression " + compression);
+			this.compression = compression;
+		}
+
+		public void addSection(String name, byte[] data) {
+			byte[] encoded;
+			try {
+				encoded = name.getBytes("UTF-8");
+			} catch(UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			if(encoded.length > 0xffff)
+				throw new IllegalArgumentException("Section name too long: " + encoded.length + " bytes");
+			names.add(encoded);
+			rawLengths.add(Integer.valueOf(data.length));
+			stored.add(compression == COMPRESSION_NONE ? data : deflate(data));
+		}
+
+		private static byte[] deflate(byte[] data) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+			try {
+				deflater.setInput(data);
+				deflater.finish();
+				ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+				byte[] chunk = new byte[64 * 1024];
+				while(!deflater.finished()) {
+					int n = deflater.deflate(chunk);
+					out.write(chunk, 0, n);
+				}
+				return out.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+
+		public void write(File f) throws IOException {
+			long tableLength = 0;
+			for(byte[] name : names)
+				tableLength += 2 + name.length + 8 + 4 + 4;
+
+			long[] offsets = new long[names.size()];
+			long position = align(MAGIC.length + 12 + tableLength);
+			for(int i = 0; i < offsets.length; i++) {
+				offsets[i] = position;
+				position = align(position + stored.get(i).length);
+			}
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 64 * 1024));
+			try {
+				out.write(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(compression);
+				out.writeInt(names.size());
+				for(int i = 0; i < offsets.length; i++) {
+					out.writeShort(names.get(i).length);
+					out.write(names.get(i));
+					out.writeLong(offsets[i]);
+					out.writeInt(stored.get(i).length);
+					out.writeInt(rawLengths.get(i).intValue());
+				}
+				for(int i = 0; i < offsets.length; i++) {
+					while(out.size() < offsets[i])
+						out.write(0);
+					out.write(stored.get(i));
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		private static long align(long position) {
+			return (position + SECTION_ALIGNMENT - 1) & ~(long) (SECTION_ALIGNMENT - 1);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.binaryorder.embeddedpc.runner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jpc.j2se.VirtualClock;
+
+import com.binaryorder.embeddedpc.pc.IbmPC;
+
+/**
+ * Runs an IbmPC without any AWT/Swing classes: no monitor frame, no display refresh and no pacing of the execution
+ * loop. Intended for batch boots on machines without a display.
+ *
+ * <pre>
+ * Options (everything else is passed on to DriveSet.buildFromArgs):
+ *  -maxinstructions n  stop after n emulated instructions
+ *  -maxseconds s       stop after s seconds of wall time
+ *  -slice n            instructions per IbmPC.execute() call (default 1000000)
+ * </pre>
+ *
+ * The process exits with 0 when a limit was reached and with 1 when the emulation failed.
+ */
+public class HeadlessRunner {
+	public static final int EXIT_OK = 0;
+	public static final int EXIT_FAILED = 1;
+
+	private static final int DEFAULT_SLICE = 1000 * 1000;
+
+	private long maxInstructions = Long.MAX_VALUE;
+	private long maxNanos = Long.MAX_VALUE;
+	private int slice = DEFAULT_SLICE;
+
+	private long instructions;
+	private long wallNanos;
+	private Throwable failure;
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+
+		HeadlessRunner runner = new HeadlessRunner();
+		String[] pcArgs = runner.parseArgs(args);
+		if(pcArgs.length == 0)
+			pcArgs = new String[] { "-fda", "mem:floppy.img", "-hda", "mem:dosgames.img", "-boot", "fda" };
+
+		IbmPC pc = IbmPC.createPC(pcArgs, new VirtualClock());
+		int status = runner.run(pc);
+		runner.printReport();
+		System.exit(status);
+	}
+
+	/**
+	 * Consumes the runner options and returns the remaining arguments.
+	 */
+	String[] parseArgs(String[] args) {
+		List<String> rest = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++) {
+			if("-maxinstructions".equals(args[i]) && (i + 1 < args.length))
+				maxInstructions = Long.parseLong(args[++i]);
+			else if("-maxseconds".equals(args[i]) && (i + 1 < args.length))
+				maxNanos = (long) (Double.parseDouble(args[++i]) * 1000000000L);
+			else if("-slice".equals(args[i]) && (i + 1 < args.length))
+				slice = Integer.parseInt(args[++i]);
+			else
+				rest.add(args[i]);
+		}
+		return rest.toArray(new String[rest.size()]);
+	}
+
+	public int run(IbmPC pc) {
+		pc.getScheduler().setFixedBudget(slice);
+		instructions = 0;
+		failure = null;
+
+		long start = System.nanoTime();
+		pc.start();
+		try {
+			while((instructions < maxInstructions) && (System.nanoTime() - start < maxNanos))
+				instructions += pc.execute();
+		} catch(Exception e) {
+			failure = e;
+			System.err.println("Caught exception @ Address:0x" + Integer.toHexString(pc.getProcessor().getInstructionPointer()));
+			e.printStackTrace();
+		} finally {
+			pc.stop();
+			wallNanos = System.nanoTime() - start;
+		}
+
+		return failure == null ? EXIT_OK : EXIT_FAILED;
+	}
+
+	public void printReport() {
+		double seconds = wallNanos / 1000000000.0;
+		System.out.println("instructions: " + instructions);
+		System.out.println("wall time:    " + seconds + " s");
+		if(seconds > 0)
+			System.out.println("MIPS:         " + (instructions / seconds) / 1000000.0);
+		System.out.println("exit status:  " + (failure == null ? "limit reached" : "failed: " + failure));
+	}
+
+	public long getInstructions() {
+		return instructions;
+	}
+
+	public long getWallNanos() {
+		return wallNanos;
+	}
+}
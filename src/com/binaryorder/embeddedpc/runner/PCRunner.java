@@ -20,6 +20,13 @@ public class PCRunner {
 	private static IbmPC runningPC;
 
 	public static void main(String[] args) throws Exception {
+		if((args.length > 0) && "-headless".equals(args[0])) {
+			String[] rest = new String[args.length - 1];
+			System.arraycopy(args, 1, rest, 0, rest.length);
+			HeadlessRunner.main(rest);
+			return;
+		}
+
 		try {
 			UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
 		} catch(Exception e) {
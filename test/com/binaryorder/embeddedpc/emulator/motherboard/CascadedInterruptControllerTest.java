@@ -0,0 +1,66 @@
+package com.binaryorder.embeddedpc.emulator.motherboard;
+
+import junit.framework.TestCase;
+
+import org.jpc.emulator.processor.Processor;
+
+public class CascadedInterruptControllerTest extends TestCase {
+	private CascadedInterruptController pic;
+
+	protected void setUp() {
+		pic = new CascadedInterruptController();
+		pic.acceptComponent(new Processor());
+
+		// AT setup: master vectors at 08h with the slave on IRQ 2, slave vectors at 70h
+		pic.ioPortWriteByte(0x20, 0x11);
+		pic.ioPortWriteByte(0x21, 0x08);
+		pic.ioPortWriteByte(0x21, 0x04);
+		pic.ioPortWriteByte(0x21, 0x01);
+		pic.ioPortWriteByte(0xa0, 0x11);
+		pic.ioPortWriteByte(0xa1, 0x70);
+		pic.ioPortWriteByte(0xa1, 0x02);
+		pic.ioPortWriteByte(0xa1, 0x01);
+		pic.ioPortWriteByte(0x21, 0x00);
+		pic.ioPortWriteByte(0xa1, 0x00);
+	}
+
+	public void testSlaveIRQ() {
+		pic.setIRQ(10, 1);
+		assertEquals(2, pic.getPendingIRQ());
+		assertEquals(0x72, pic.cpuGetInterrupt());
+
+		// the timer still outranks the cascade
+		pic.setIRQ(0, 1);
+		assertEquals(0, pic.getPendingIRQ());
+		assertEquals(0x08, pic.cpuGetInterrupt());
+		pic.ioPortWriteByte(0x20, 0x20);
+
+		// slave and master both need their EOI
+		pic.setIRQ(10, 0);
+		pic.setIRQ(10, 1);
+		assertEquals(-1, pic.getPendingIRQ());
+		pic.ioPortWriteByte(0xa0, 0x20);
+		pic.ioPortWriteByte(0x20, 0x20);
+		assertEquals(2, pic.getPendingIRQ());
+	}
+
+	public void testLevelTriggered() {
+		// slave in level triggered mode
+		pic.ioPortWriteByte(0xa0, 0x19);
+		pic.ioPortWriteByte(0xa1, 0x70);
+		pic.ioPortWriteByte(0xa1, 0x02);
+		pic.ioPortWriteByte(0xa1, 0x01);
+		pic.ioPortWriteByte(0xa1, 0x00);
+
+		pic.setIRQ(11, 1);
+		assertEquals(0x73, pic.cpuGetInterrupt());
+		pic.ioPortWriteByte(0xa0, 0x20);
+		pic.ioPortWriteByte(0x20, 0x20);
+		// still asserted, so it comes back without a new edge
+		assertEquals(2, pic.getPendingIRQ());
+
+		// dropped before the acknowledge: the master has latched the cascade edge, the slave answers with IRQ 7
+		pic.setIRQ(11, 0);
+		assertEquals(0x77, pic.cpuGetInterrupt());
+	}
+}
@@ -0,0 +1,45 @@
+package com.binaryorder.embeddedpc.emulator.motherboard;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class IOPortProfileTest extends TestCase {
+	private static IOPortProfile profile(int port, long reads, long writes, String device) {
+		long[] portReads = new long[IOPortProfile.PORT_COUNT];
+		long[] portWrites = new long[IOPortProfile.PORT_COUNT];
+		long[] nanos = new long[IOPortProfile.PORT_COUNT];
+		portReads[port] = reads;
+		portWrites[port] = writes;
+		nanos[port] = 10 * (reads + writes);
+		Map<String, long[]> devices = new LinkedHashMap<String, long[]>();
+		devices.put(device, new long[] { reads, writes, nanos[port] });
+		return new IOPortProfile(portReads, portWrites, nanos, devices);
+	}
+
+	public void testSince() {
+		IOPortProfile before = profile(0x61, 5, 2, "PPI");
+		IOPortProfile after = profile(0x61, 8, 2, "PPI");
+		IOPortProfile interval = after.since(before);
+		assertEquals(3, interval.getReads(0x61));
+		assertEquals(0, interval.getWrites(0x61));
+		assertEquals(30, interval.getNanos(0x61));
+		assertEquals(3, interval.getDeviceReads("PPI"));
+		// the snapshots themselves stay as they were
+		assertEquals(8, after.getReads(0x61));
+	}
+
+	public void testPlus() {
+		IOPortProfile total = profile(0x20, 1, 1, "PIC").plus(profile(0x3d4, 0, 7, "CGA")).plus(profile(0x20, 2, 0, "PIC"));
+		assertEquals(3, total.getReads(0x20));
+		assertEquals(7, total.getWrites(0x3d4));
+		assertEquals(2, total.getDevices().size());
+		assertEquals(3, total.getDeviceReads("PIC"));
+
+		int[] hot = total.getHotPorts();
+		assertEquals(2, hot.length);
+		assertEquals(0x3d4, hot[0]);
+		assertEquals(0x20, hot[1]);
+	}
+}
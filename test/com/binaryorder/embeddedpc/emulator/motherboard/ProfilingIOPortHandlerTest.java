@@ -0,0 +1,73 @@
+package com.binaryorder.embeddedpc.emulator.motherboard;
+
+import junit.framework.TestCase;
+
+import org.jpc.emulator.AbstractHardwareComponent;
+import org.jpc.emulator.motherboard.IOPortCapable;
+
+public class ProfilingIOPortHandlerTest extends TestCase {
+	static class Device extends AbstractHardwareComponent implements IOPortCapable {
+		private final int[] ports;
+
+		Device(int... ports) {
+			this.ports = ports;
+		}
+
+		public int ioPortReadByte(int address) {
+			return 0;
+		}
+
+		public int ioPortReadWord(int address) {
+			return 0;
+		}
+
+		public int ioPortReadLong(int address) {
+			return 0;
+		}
+
+		public void ioPortWriteByte(int address, int data) {
+		}
+
+		public void ioPortWriteWord(int address, int data) {
+		}
+
+		public void ioPortWriteLong(int address, int data) {
+		}
+
+		public int[] ioPortsRequested() {
+			return ports;
+		}
+
+		public String toString() {
+			return "DMA";
+		}
+	}
+
+	public void testAlternatingPortsAreBothSampled() {
+		ProfilingIOPortHandler handler = new ProfilingIOPortHandler();
+		handler.registerIOPortCapable(new Device(0x3d4, 0x3d5));
+		// index and data register in turn, as a CRTC update does
+		for(int i = 0; i < 64; i++) {
+			handler.ioPortWriteByte(0x3d4, 0x0e);
+			handler.ioPortWriteByte(0x3d5, i);
+		}
+		assertEquals(64, handler.getWrites(0x3d4));
+		assertEquals(64, handler.getWrites(0x3d5));
+		assertEquals(4, handler.getSamples(0x3d4));
+		assertEquals(4, handler.getSamples(0x3d5));
+	}
+
+	public void testDevicesWithTheSameName() {
+		ProfilingIOPortHandler handler = new ProfilingIOPortHandler();
+		handler.registerIOPortCapable(new Device(0x00));
+		handler.registerIOPortCapable(new Device(0xc0));
+		handler.ioPortReadByte(0x00);
+		handler.ioPortReadByte(0xc0);
+		handler.ioPortReadByte(0xc0);
+
+		IOPortProfile profile = handler.snapshot();
+		assertEquals(2, profile.getDevices().size());
+		assertEquals(1, profile.getDeviceReads("DMA"));
+		assertEquals(2, profile.getDeviceReads("DMA #2"));
+	}
+}
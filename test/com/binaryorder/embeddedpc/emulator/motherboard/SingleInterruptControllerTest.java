@@ -0,0 +1,180 @@
+package com.binaryorder.embeddedpc.emulator.motherboard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.jpc.emulator.processor.Processor;
+
+public class SingleInterruptControllerTest extends TestCase {
+	private SingleInterruptController pic;
+	private CountingProcessor cpu;
+
+	static class CountingProcessor extends Processor {
+		int raised, cleared;
+
+		public void raiseInterrupt() {
+			raised++;
+		}
+
+		public void clearInterrupt() {
+			cleared++;
+		}
+	}
+
+	protected void setUp() {
+		pic = new SingleInterruptController();
+		cpu = new CountingProcessor();
+		pic.acceptComponent(cpu);
+
+		// ICW1 edge triggered, single, ICW4 needed; vectors at 08h; ICW4 8086 mode
+		pic.ioPortWriteByte(0x20, 0x13);
+		pic.ioPortWriteByte(0x21, 0x08);
+		pic.ioPortWriteByte(0x21, 0x01);
+		pic.ioPortWriteByte(0x21, 0x00);
+	}
+
+	public void testPriority() {
+		assertEquals(-1, pic.getPendingIRQ());
+		pic.setIRQ(5, 1);
+		pic.setIRQ(3, 1);
+		assertEquals(3, pic.getPendingIRQ());
+
+		assertEquals(0x0b, pic.cpuGetInterrupt());
+		// IRQ 5 waits for the end of IRQ 3
+		assertEquals(-1, pic.getPendingIRQ());
+		pic.ioPortWriteByte(0x20, 0x20);
+		assertEquals(5, pic.getPendingIRQ());
+		assertEquals(0x0d, pic.cpuGetInterrupt());
+	}
+
+	public void testRotation() {
+		// set priority: IRQ 5 becomes the highest
+		pic.ioPortWriteByte(0x20, 0xc4);
+		pic.setIRQ(3, 1);
+		pic.setIRQ(6, 1);
+		assertEquals(6, pic.getPendingIRQ());
+		pic.setIRQ(5, 1);
+		assertEquals(5, pic.getPendingIRQ());
+	}
+
+	public void testMask() {
+		pic.ioPortWriteByte(0x21, 0x08);
+		pic.setIRQ(3, 1);
+		assertEquals(-1, pic.getPendingIRQ());
+		pic.ioPortWriteByte(0x21, 0x00);
+		assertEquals(3, pic.getPendingIRQ());
+	}
+
+	public void testLineFollowsPendingState() {
+		cpu.cleared = 0;
+		pic.setIRQ(0, 1);
+		pic.setIRQ(0, 0);
+		pic.setIRQ(0, 1);
+		pic.setIRQ(1, 1);
+		// one raise for the first request, the others only count
+		assertEquals(1, cpu.raised);
+		assertEquals(3, pic.getRedundantSignals());
+
+		assertEquals(0x08, pic.cpuGetInterrupt());
+		assertEquals(1, cpu.raised);
+		assertEquals(0, cpu.cleared);
+
+		// end of IRQ 0 lets IRQ 1 through
+		pic.ioPortWriteByte(0x20, 0x20);
+		assertEquals(2, cpu.raised);
+
+		// masking it drops the line again
+		pic.ioPortWriteByte(0x21, 0x02);
+		assertEquals(1, cpu.cleared);
+	}
+
+	public void testMetrics() {
+		// off by default
+		assertNull(pic.getMetrics());
+		pic.setMetricsEnabled(true);
+		assertTrue(pic.isMetricsEnabled());
+
+		pic.ioPortWriteByte(0x21, 0x02);
+		pic.setIRQ(0, 1);
+		pic.setIRQ(0, 1);
+		pic.setIRQ(1, 1);
+		assertEquals(0x08, pic.cpuGetInterrupt());
+		pic.ioPortWriteByte(0x20, 0x20);
+		// nothing left to deliver
+		assertEquals(0x0f, pic.cpuGetInterrupt());
+
+		InterruptMetrics metrics = pic.getMetrics();
+		assertEquals(1, metrics.getRequests(0));
+		assertEquals(1, metrics.getAcks(0));
+		assertEquals(1, metrics.getEOIs(0));
+		assertEquals(1, metrics.getRequests(1));
+		assertEquals(1, metrics.getMaskedDrops(1));
+		assertEquals(0, metrics.getAcks(1));
+		assertEquals(1, metrics.getSpuriousIRQs(7));
+		// no clock connected, so the one sample waited zero ticks
+		assertEquals(1, metrics.getLatencyHistogram()[0]);
+
+		// the snapshot stays as it was
+		pic.setIRQ(0, 0);
+		pic.setIRQ(0, 1);
+		assertEquals(1, metrics.getRequests(0));
+		assertEquals(2, pic.getMetrics().getRequests(0));
+
+		pic.setMetricsEnabled(false);
+		pic.setIRQ(0, 0);
+		pic.setIRQ(0, 1);
+		assertNull(pic.getMetrics());
+	}
+
+	private static byte[] dumpState(SingleInterruptController pic) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		pic.dumpState(new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	private static void loadState(SingleInterruptController pic, byte[] state) throws IOException {
+		pic.loadState(new DataInputStream(new ByteArrayInputStream(state)));
+	}
+
+	public void testStateDuringInit() throws IOException {
+		// ICW1 edge triggered, cascaded, ICW4 needed; the snapshot is taken after ICW2
+		pic.ioPortWriteByte(0x20, 0x11);
+		pic.ioPortWriteByte(0x21, 0x08);
+		byte[] state = dumpState(pic);
+
+		SingleInterruptController loaded = new SingleInterruptController();
+		loaded.acceptComponent(new CountingProcessor());
+		// leave it in single mode, so the loaded state has to switch it back
+		loaded.ioPortWriteByte(0x20, 0x13);
+		loadState(loaded, state);
+		// ICW3 and ICW4 follow; in single mode ICW3 would be taken for ICW4 and ICW4 for a mask
+		loaded.ioPortWriteByte(0x21, 0x04);
+		loaded.ioPortWriteByte(0x21, 0x01);
+		loaded.setIRQ(0, 1);
+		assertEquals(0, loaded.getPendingIRQ());
+		assertEquals(0x08, loaded.cpuGetInterrupt());
+	}
+
+	public void testOldState() throws IOException {
+		pic.ioPortWriteByte(0x21, 0x08);
+		byte[] state = dumpState(pic);
+		// older snapshots have neither the tag after elcrMask nor levelMask and singleMode at the end
+		int tag = 4 + 4 + 4 + 3 + 4 + 4 + 2;
+		byte[] old = new byte[state.length - 4 - 2];
+		System.arraycopy(state, 0, old, 0, tag);
+		System.arraycopy(state, tag + 4, old, tag, old.length - tag);
+
+		SingleInterruptController loaded = new SingleInterruptController();
+		loaded.acceptComponent(new CountingProcessor());
+		loadState(loaded, old);
+		loaded.setIRQ(3, 1);
+		loaded.setIRQ(4, 1);
+		assertEquals(4, loaded.getPendingIRQ());
+		assertEquals(0x0c, loaded.cpuGetInterrupt());
+	}
+}
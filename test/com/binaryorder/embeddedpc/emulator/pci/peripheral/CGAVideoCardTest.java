@@ -0,0 +1,240 @@
+package com.binaryorder.embeddedpc.emulator.pci.peripheral;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.jpc.emulator.memory.LazyMemory;
+import org.jpc.emulator.memory.Memory;
+import org.jpc.support.GraphicsDisplay;
+
+public class CGAVideoCardTest extends TestCase {
+	static class BufferDisplay implements GraphicsDisplay {
+		int width, height;
+		int[] buffer = new int[0];
+
+		public int[] getDisplayBuffer() {
+			return buffer;
+		}
+
+		public void dirtyDisplayRegion(int x, int y, int w, int h) {
+		}
+
+		public void resizeDisplay(int w, int h) {
+			width = w;
+			height = h;
+			buffer = new int[w * h];
+		}
+
+		public int rgbToPixel(int red, int green, int blue) {
+			return (red << 16) | (green << 8) | blue;
+		}
+	}
+
+	private static CGAVideoCard createCard(int modeControl, boolean parallel) {
+		CGAVideoCard card = new CGAVideoCard();
+		card.setParallelRendering(parallel);
+		card.ioPortWriteByte(0x3d8, modeControl);
+
+		Random random = new Random(1);
+		Memory font = new LazyMemory(0x1000);
+		for(int i = 0; i < 0x1000; i++)
+			font.setByte(i, (byte) random.nextInt());
+		card.setCharacterGenerator(font, 0);
+		for(int i = 0; i < 0x4000; i++)
+			card.getVideoMemory().setByte(i, (byte) random.nextInt());
+		return card;
+	}
+
+	public void testParallelRenderingMatchesSerial() {
+		// 80x25 text, 320x200 and 640x200 graphics
+		int[] modes = { 0x08, 0x0a, 0x1a };
+		for(int modeControl : modes) {
+			CGAVideoCard serial = createCard(modeControl, false);
+			CGAVideoCard parallel = createCard(modeControl, true);
+			BufferDisplay serialDisplay = new BufferDisplay();
+			BufferDisplay parallelDisplay = new BufferDisplay();
+			// the first frame is a full one, the later ones only redraw what changed
+			for(int frame = 0; frame < 3; frame++) {
+				serial.renderFrame(serialDisplay);
+				parallel.renderFrame(parallelDisplay);
+				String where = "mode " + Integer.toHexString(modeControl) + ", frame " + frame;
+				assertEquals(where, serialDisplay.width, parallelDisplay.width);
+				assertEquals(where, serialDisplay.height, parallelDisplay.height);
+				assertTrue(where, Arrays.equals(serialDisplay.buffer, parallelDisplay.buffer));
+
+				int address = 0x100 + 0x1234 * frame;
+				serial.getVideoMemory().setByte(address, (byte) (0x55 + frame));
+				parallel.getVideoMemory().setByte(address, (byte) (0x55 + frame));
+			}
+		}
+	}
+
+	static class CountingDisplay extends BufferDisplay {
+		int conversions;
+
+		public int rgbToPixel(int red, int green, int blue) {
+			conversions++;
+			return super.rgbToPixel(red, green, blue);
+		}
+	}
+
+	public void testPaletteConvertedOnlyAfterChange() {
+		// 80x25 text takes the 16 colour palette, 320x200 the 4 CGA colours
+		int[] modes = { 0x08, 0x0a };
+		int[] entries = { 16, 4 };
+		for(int i = 0; i < modes.length; i++) {
+			CGAVideoCard card = createCard(modes[i], false);
+			CountingDisplay display = new CountingDisplay();
+			card.renderFrame(display);
+			assertTrue(display.conversions > 0);
+
+			String where = "mode " + Integer.toHexString(modes[i]);
+			display.conversions = 0;
+			card.renderFrame(display);
+			assertEquals(where, 0, display.conversions);
+
+			// one DAC entry and the colour select register each take one more conversion of the palette
+			card.ioPortWriteByte(0x3c8, 1);
+			card.ioPortWriteByte(0x3c9, 0x3f);
+			card.ioPortWriteByte(0x3c9, 0x00);
+			card.ioPortWriteByte(0x3c9, 0x00);
+			card.renderFrame(display);
+			card.renderFrame(display);
+			card.ioPortWriteByte(0x3d9, 0x21);
+			card.renderFrame(display);
+			card.renderFrame(display);
+			assertEquals(where, 2 * entries[i], display.conversions);
+		}
+	}
+
+	public void testRenderOnDemand() {
+		CGAVideoCard serial = createCard(0x0a, false);
+		CGAVideoCard onDemand = createCard(0x0a, false);
+		onDemand.setRenderOnDemand(true);
+		BufferDisplay serialDisplay = new BufferDisplay();
+		BufferDisplay onDemandDisplay = new BufferDisplay();
+		for(int frame = 0; frame < 3; frame++) {
+			serial.updateDisplay(serialDisplay);
+			onDemand.updateDisplay(onDemandDisplay);
+			assertEquals(0, onDemandDisplay.buffer.length);
+
+			int address = 0x100 + 0x1234 * frame;
+			serial.getVideoMemory().setByte(address, (byte) (0x55 + frame));
+			onDemand.getVideoMemory().setByte(address, (byte) (0x55 + frame));
+		}
+		serial.updateDisplay(serialDisplay);
+
+		// one frame catches up with everything the skipped updates left out
+		onDemand.renderFrame(onDemandDisplay);
+		assertEquals(serialDisplay.width, onDemandDisplay.width);
+		assertEquals(serialDisplay.height, onDemandDisplay.height);
+		assertTrue(Arrays.equals(serialDisplay.buffer, onDemandDisplay.buffer));
+	}
+
+	public void testState() throws IOException {
+		CGAVideoCard card = createCard(0x0a, false);
+		card.ioPortWriteByte(0x3d9, 0x20);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		card.dumpState(new DataOutputStream(bytes));
+		byte[] state = bytes.toByteArray();
+
+		CGAVideoCard loaded = new CGAVideoCard();
+		loaded.loadState(new DataInputStream(new ByteArrayInputStream(state)));
+		assertFalse(loaded.isTextMode());
+		assertEquals(40, loaded.getTextColumns());
+
+		// a snapshot from before the CGA registers were saved ends ahead of the tag
+		byte[] old = Arrays.copyOf(state, state.length - 13);
+		loaded.loadState(new DataInputStream(new ByteArrayInputStream(old)));
+		assertEquals(80, loaded.getTextColumns());
+	}
+
+	public void testCompatibilityTextWindow() {
+		CGAVideoCard card = new CGAVideoCard(true);
+		Memory window = card.new VGALowMemoryRegion();
+		// the second pass checks the registers after a reset, with different characters
+		for(int pass = 0; pass < 2; pass++) {
+			char first = (char) ('A' + 3 * pass);
+			// what the BIOS writes to 0xB8000 shows on the text screen
+			window.setByte(0x18000, (byte) first);
+			window.setByte(0x18001, (byte) 0x07);
+			window.setByte(0x18002, (byte) (first + 1));
+			window.setByte(0x18000 + 160, (byte) (first + 2));
+			assertTrue(card.isTextMode());
+			assertEquals(first, card.getTextLine(0).charAt(0));
+			assertEquals(first + 1, card.getTextLine(0).charAt(1));
+			assertEquals(first + 2, card.getTextLine(1).charAt(0));
+			assertEquals(0x0700 | first, card.getTextSurface()[0]);
+			assertEquals(first, window.getByte(0x18000));
+
+			card.reset();
+		}
+	}
+
+	public void testTextSurface() {
+		CGAVideoCard card = new CGAVideoCard();
+		Memory memory = card.getVideoMemory();
+		// 80x25: a row takes 160 bytes
+		memory.setByte(0, (byte) 'A');
+		memory.setByte(1, (byte) 0x1f);
+		memory.setByte(2 * 79, (byte) 'Z');
+		memory.setByte(160, (byte) 'B');
+		assertEquals(80, card.getTextColumns());
+		int[] cells = card.getTextSurface();
+		assertEquals(25 * 80, cells.length);
+		assertEquals(0x1f00 | 'A', cells[0]);
+		assertEquals('B', cells[80]);
+		assertEquals(80, card.getTextLine(0).length());
+		assertEquals('Z', card.getTextLine(0).charAt(79));
+		assertEquals('B', card.getTextLine(1).charAt(0));
+
+		// mode 1 is 40 columns wide and a row takes 80 bytes
+		card.ioPortWriteByte(0x3d8, 0x0a);
+		memory.setByte(80, (byte) 'C');
+		assertEquals(40, card.getTextColumns());
+		cells = card.getTextSurface();
+		assertEquals(25 * 40, cells.length);
+		assertEquals('C', cells[40]);
+		assertEquals(40, card.getTextLine(1).length());
+		assertEquals('C', card.getTextLine(1).charAt(0));
+		assertEquals('B', card.getTextLine(2).charAt(0));
+	}
+
+	public void testTextChanges() {
+		CGAVideoCard card = new CGAVideoCard();
+		Memory memory = card.getVideoMemory();
+		final List<String> events = new ArrayList<String>();
+		card.addTextChangeListener(new TextChangeListener() {
+			public void textRowChanged(int row, int[] cells) {
+				events.add(row + ":" + (char) (cells[0] & 0xff) + ":" + cells.length);
+			}
+		});
+
+		// an empty screen matches the initial shadow
+		card.checkTextChanges();
+		assertTrue(events.isEmpty());
+
+		memory.setByte(3 * 160, (byte) 'A');
+		memory.setByte(7 * 160, (byte) 'B');
+		card.checkTextChanges();
+		assertEquals(Arrays.asList("3:A:80", "7:B:80"), events);
+
+		events.clear();
+		card.checkTextChanges();
+		assertTrue(events.isEmpty());
+
+		// an attribute change counts as well
+		memory.setByte(3 * 160 + 1, (byte) 0x70);
+		card.checkTextChanges();
+		assertEquals(Arrays.asList("3:A:80"), events);
+	}
+}
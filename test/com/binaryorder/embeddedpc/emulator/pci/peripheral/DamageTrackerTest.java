@@ -0,0 +1,68 @@
+package com.binaryorder.embeddedpc.emulator.pci.peripheral;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class DamageTrackerTest extends TestCase {
+	private DamageTracker damage;
+	private List<String> regions;
+	private CGAVideoCardTest.BufferDisplay display;
+
+	protected void setUp() {
+		damage = new DamageTracker();
+		regions = new ArrayList<String>();
+		display = new CGAVideoCardTest.BufferDisplay() {
+			public void dirtyDisplayRegion(int x, int y, int w, int h) {
+				regions.add(x + "," + y + " " + w + "x" + h);
+			}
+		};
+	}
+
+	public void testFullTextScreen() {
+		for(int row = 0; row < 25; row++) {
+			for(int column = 0; column < 80; column++)
+				damage.add(column * 8, row * 8, 8, 8);
+		}
+		assertFalse(damage.isEmpty());
+		damage.flush(display);
+		assertEquals(Arrays.asList("0,0 640x200"), regions);
+		assertEquals(1, damage.getRectangleCount());
+		assertTrue(damage.isEmpty());
+	}
+
+	public void testScatteredCells() {
+		// overlapping spans on touching rows merge, the cell further down stays on its own
+		damage.add(16, 0, 8, 8);
+		damage.add(20, 8, 8, 8);
+		damage.add(160, 40, 8, 8);
+		damage.flush(display);
+		assertEquals(Arrays.asList("16,0 12x16", "160,40 8x8"), regions);
+		assertEquals(2, damage.getRectangleCount());
+	}
+
+	public void testSeparateBlocks() {
+		// side by side on the same rows is one span, but spans that do not overlap are kept apart
+		damage.add(0, 0, 8, 8);
+		damage.add(100, 0, 8, 8);
+		damage.add(200, 8, 8, 8);
+		damage.flush(display);
+		assertEquals(Arrays.asList("0,0 108x8", "200,8 8x8"), regions);
+
+		// each flush starts over
+		regions.clear();
+		damage.flush(display);
+		assertTrue(regions.isEmpty());
+		assertEquals(0, damage.getRectangleCount());
+	}
+
+	public void testNegativeCoordinates() {
+		damage.add(-4, -2, 8, 4);
+		damage.add(0, -10, 8, 5);
+		damage.add(-20, 0, 8, 8);
+		damage.flush(display);
+		assertEquals(Arrays.asList("0,0 4x2"), regions);
+	}
+}
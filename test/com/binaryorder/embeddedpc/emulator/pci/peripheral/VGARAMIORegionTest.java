@@ -0,0 +1,143 @@
+package com.binaryorder.embeddedpc.emulator.pci.peripheral;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.binaryorder.embeddedpc.emulator.pci.peripheral.CGAVideoCard.VGARAMIORegion;
+
+public class VGARAMIORegionTest extends TestCase {
+	public void testWordAccess() {
+		VGARAMIORegion region = new VGARAMIORegion();
+		region.setWord(0x100, (short) 0x0741);
+		assertEquals(0x41, region.getByte(0x100));
+		assertEquals(0x07, region.getByte(0x101));
+		assertEquals((short) 0x0741, region.getWord(0x100));
+
+		region.setDoubleWord(0x200, 0x80402010);
+		assertEquals(0x80402010, region.getDoubleWord(0x200));
+		assertEquals((short) 0x8040, region.getWord(0x202));
+	}
+
+	public void testGrowth() {
+		VGARAMIORegion region = new VGARAMIORegion();
+		assertEquals(0, region.getByte(200 * 1024));
+		region.setDoubleWord(300 * 1024 - 2, 0x12345678);
+		assertEquals(0x12345678, region.getDoubleWord(300 * 1024 - 2));
+
+		try {
+			region.setByte((int) region.getSize(), (byte) 1);
+			fail("write beyond the video memory");
+		} catch(ArrayIndexOutOfBoundsException e) {
+		}
+	}
+
+	public void testReserve() {
+		VGARAMIORegion region = new VGARAMIORegion();
+		region.setByte(0x10, (byte) 5);
+		region.reserve(200 * 1024);
+		assertTrue(region.getBuffer().length >= 200 * 1024);
+		assertEquals(5, region.getByte(0x10));
+
+		// never beyond the video memory
+		region.reserve((int) region.getSize() + 1);
+		assertEquals(region.getSize(), region.getBuffer().length);
+	}
+
+	public void testDirtyChunks() {
+		VGARAMIORegion region = new VGARAMIORegion();
+		long[] spare = new long[VGARAMIORegion.DIRTY_WORDS];
+		region.takeDirty(spare);
+
+		region.setByte(0x2000 + 80 * 3 + 5, (byte) 0xff);
+		long[] dirty = region.takeDirty(new long[VGARAMIORegion.DIRTY_WORDS]);
+
+		// the scanline holding the byte is dirty, memory just before it is not
+		assertTrue(VGARAMIORegion.isDirty(dirty, 0x2000 + 80 * 3, 0x2000 + 80 * 4 - 1));
+		assertFalse(VGARAMIORegion.isDirty(dirty, 0x2000, 0x20bf));
+		assertFalse(VGARAMIORegion.isDirty(dirty, 0x2100, 0x3fff));
+
+		// taking the bitmap starts over
+		dirty = region.takeDirty(dirty);
+		assertFalse(VGARAMIORegion.isDirty(dirty, 0, 0x3fff));
+	}
+
+	public void testNoMarkLost() throws InterruptedException {
+		final VGARAMIORegion region = new VGARAMIORegion();
+		final int chunks = 64 * 1024 / 64;
+		Thread writer = new Thread() {
+			public void run() {
+				for(int chunk = 0; chunk < chunks; chunk++)
+					region.setByte(chunk * 64, (byte) 1);
+			}
+		};
+
+		long[] seen = new long[VGARAMIORegion.DIRTY_WORDS];
+		long[] dirty = new long[VGARAMIORegion.DIRTY_WORDS];
+		writer.start();
+		while(writer.isAlive()) {
+			region.takeDirty(dirty);
+			for(int i = 0; i < dirty.length; i++)
+				seen[i] |= dirty[i];
+		}
+		writer.join();
+		region.takeDirty(dirty);
+		for(int i = 0; i < dirty.length; i++)
+			seen[i] |= dirty[i];
+
+		for(int chunk = 0; chunk < chunks; chunk++)
+			assertTrue("chunk " + chunk, VGARAMIORegion.isDirty(seen, chunk * 64, chunk * 64));
+	}
+
+	public void testDirtyMapState() throws IOException {
+		VGARAMIORegion region = new VGARAMIORegion();
+		region.setByte(0x1000, (byte) 3);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		region.dumpState(new DataOutputStream(bytes));
+
+		VGARAMIORegion copy = new VGARAMIORegion();
+		copy.loadState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		long[] dirty = copy.takeDirty(new long[VGARAMIORegion.DIRTY_WORDS]);
+		assertTrue(VGARAMIORegion.isDirty(dirty, 0x1000, 0x1000));
+		assertFalse(VGARAMIORegion.isDirty(dirty, 0, 0xfff));
+		assertEquals(3, copy.getByte(0x1000));
+	}
+
+	public void testOldDirtyPages() throws IOException {
+		// the old format has a boolean per page where the bitmap is now
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(-1);
+		out.writeInt(16);
+		out.write(new byte[16]);
+		out.writeInt(1024);
+		for(int i = 0; i < 1024; i++)
+			out.writeBoolean(false);
+		out.writeInt(0x12345678);
+
+		VGARAMIORegion region = new VGARAMIORegion();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		region.loadState(in);
+		assertEquals(0x12345678, in.readInt());
+		// nothing is known about what changed, so the next frame redraws everything
+		long[] dirty = region.takeDirty(new long[VGARAMIORegion.DIRTY_WORDS]);
+		assertTrue(VGARAMIORegion.isDirty(dirty, 0, 0));
+		assertTrue(VGARAMIORegion.isDirty(dirty, 0x3fff, 0x3fff));
+
+		// a bitmap larger than the video memory is refused
+		bytes.reset();
+		out.writeInt(-1);
+		out.writeInt(0);
+		out.writeInt(-1);
+		out.writeInt(VGARAMIORegion.DIRTY_WORDS + 1);
+		try {
+			region.loadState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+			fail("oversized dirty map accepted");
+		} catch(IOException e) {
+		}
+	}
+}
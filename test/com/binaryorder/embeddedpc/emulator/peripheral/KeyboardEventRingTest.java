@@ -0,0 +1,51 @@
+package com.binaryorder.embeddedpc.emulator.peripheral;
+
+import junit.framework.TestCase;
+
+public class KeyboardEventRingTest extends TestCase {
+	public void testOrder() {
+		KeyboardEventRing ring = new KeyboardEventRing(4);
+		assertEquals(-1, ring.poll());
+		for(int i = 0; i < 4; i++)
+			assertTrue(ring.offer((byte) (0xf0 + i), 0));
+		assertEquals(4, ring.size());
+		for(int i = 0; i < 4; i++)
+			assertEquals(0xf0 + i, ring.poll());
+		assertTrue(ring.isEmpty());
+	}
+
+	public void testNothingLostAcrossThreads() throws InterruptedException {
+		final KeyboardEventRing ring = new KeyboardEventRing(16);
+		final int count = 100000;
+		Thread producer = new Thread() {
+			public void run() {
+				for(int i = 0; i < count; i++)
+					assertTrue(ring.offer((byte) i, Long.MAX_VALUE / 2));
+			}
+		};
+		producer.start();
+
+		for(int i = 0; i < count; i++) {
+			int data;
+			while((data = ring.poll()) < 0)
+				Thread.yield();
+			assertEquals(i & 0xff, data);
+		}
+		producer.join();
+		assertTrue(ring.isEmpty());
+	}
+
+	public void testFullRing() {
+		KeyboardEventRing ring = new KeyboardEventRing(2);
+		assertTrue(ring.offer((byte) 1, 0));
+		assertTrue(ring.offer((byte) 2, 0));
+		// nobody drains the ring, so the wait gives up
+		assertFalse(ring.offer((byte) 3, 1000 * 1000));
+		assertEquals(1, ring.poll());
+
+		ring.clear();
+		assertTrue(ring.isEmpty());
+		assertTrue(ring.offer((byte) 4, 0));
+		assertEquals(4, ring.poll());
+	}
+}
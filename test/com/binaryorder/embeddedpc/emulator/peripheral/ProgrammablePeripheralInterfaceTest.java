@@ -127,6 +127,11 @@ public class ProgrammablePeripheralInterfaceTest extends TestCase {
 		assertEquals((byte) 0xAA, ppi.ioPortReadByte(ProgrammablePeripheralInterface.PORT_A));
 		ppi.ioPortWriteByte(ProgrammablePeripheralInterface.PORT_B, 0x0C);
 		ppi.keyPressed((byte) 0x12);
+		ppi.keyReleased((byte) 0x12);
+		// host events reach port A when the emulation thread polls, one code per read
+		ppi.pollHostInput();
 		assertEquals(0x12, ppi.ioPortReadByte(ProgrammablePeripheralInterface.PORT_A));
+		ppi.pollHostInput();
+		assertEquals((byte) 0x92, ppi.ioPortReadByte(ProgrammablePeripheralInterface.PORT_A));
 	}
 }
@@ -0,0 +1,87 @@
+package com.binaryorder.embeddedpc.pc;
+
+import junit.framework.TestCase;
+
+public class ExecutionSchedulerTest extends TestCase {
+	private static final long MILLISECOND = 1000 * 1000;
+
+	public void testBudgetConverges() {
+		ExecutionScheduler scheduler = new ExecutionScheduler(2 * MILLISECOND);
+		assertEquals(20000, scheduler.getSliceBudget());
+
+		// the first measurement is taken as it is: 10 MIPS makes 20000 instructions per 2 ms
+		scheduler.sliceFinished(10000, MILLISECOND);
+		assertEquals(10000000, scheduler.getInstructionsPerSecond());
+		assertEquals(20000, scheduler.getSliceBudget());
+
+		// the guest gets ten times faster; the budget follows step by step and never overshoots
+		int last = scheduler.getSliceBudget();
+		for(int i = 0; i < 100; i++) {
+			scheduler.sliceFinished(100000, MILLISECOND);
+			int budget = scheduler.getSliceBudget();
+			assertTrue(budget >= last);
+			assertTrue(budget <= 200000);
+			if(i == 0)
+				assertEquals(20000 + (200000 - 20000) / 8, budget);
+			last = budget;
+		}
+		assertTrue(last > 199000);
+
+		// slices that did nothing or took no time leave the estimate alone
+		scheduler.sliceFinished(0, MILLISECOND);
+		scheduler.sliceFinished(5000, 0);
+		assertEquals(last, scheduler.getSliceBudget());
+		assertEquals(103, scheduler.getSliceCount());
+		assertEquals(10000 + 100 * 100000 + 5000, scheduler.getTotalInstructions());
+		assertEquals(102 * MILLISECOND, scheduler.getTotalNanos());
+
+		scheduler.reset();
+		assertEquals(20000, scheduler.getSliceBudget());
+		assertEquals(0, scheduler.getInstructionsPerSecond());
+		assertEquals(0, scheduler.getSliceCount());
+	}
+
+	public void testBudgetClamping() {
+		ExecutionScheduler slow = new ExecutionScheduler(2 * MILLISECOND);
+		// one instruction per second would give a budget of nothing
+		slow.sliceFinished(1, 1000 * MILLISECOND);
+		assertEquals(1000, slow.getSliceBudget());
+
+		ExecutionScheduler fast = new ExecutionScheduler(2 * MILLISECOND);
+		// 50 billion instructions per second
+		fast.sliceFinished(50000000, MILLISECOND);
+		assertEquals(50000000, fast.getSliceBudget());
+	}
+
+	public void testDeadline() {
+		ExecutionScheduler scheduler = new ExecutionScheduler(2 * MILLISECOND);
+		assertTrue(scheduler.isAdaptive());
+		assertEquals(1000 + 2 * MILLISECOND, scheduler.getDeadline(1000));
+
+		// a fixed budget bounds slices by instruction count only
+		scheduler.setFixedBudget(5000);
+		assertFalse(scheduler.isAdaptive());
+		assertEquals(5000, scheduler.getSliceBudget());
+		assertEquals(Long.MAX_VALUE, scheduler.getDeadline(1000));
+		scheduler.sliceFinished(10000, MILLISECOND);
+		assertEquals(5000, scheduler.getSliceBudget());
+
+		scheduler.setFixedBudget(0);
+		assertTrue(scheduler.isAdaptive());
+		assertEquals(20000, scheduler.getSliceBudget());
+		assertEquals(1000 + 2 * MILLISECOND, scheduler.getDeadline(1000));
+	}
+
+	public void testArguments() {
+		try {
+			new ExecutionScheduler(0);
+			fail("empty slice accepted");
+		} catch(IllegalArgumentException e) {
+		}
+		try {
+			new ExecutionScheduler().setFixedBudget(-1);
+			fail("negative budget accepted");
+		} catch(IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.binaryorder.embeddedpc.pc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jpc.emulator.processor.Processor;
+import org.jpc.j2se.VirtualClock;
+import org.jpc.test.Checkpoint;
+import org.jpc.test.CheckpointCallback;
+import org.jpc.test.CheckpointProcessor;
+
+public class IbmPCFarmTest extends TestCase {
+	// the BIOS reset entry, reached right after the jump at 0xffff0
+	private static final int BIOS_RESET = 0xfe05b;
+
+	public void testConcurrentBoot() throws Exception {
+		String[] args = new String[] { "-fda", "mem:odin070.img", "-boot", "fda" };
+		IbmPCFarm farm = new IbmPCFarm(2);
+		IbmPC first = farm.createPC(args, new VirtualClock());
+		IbmPC second = farm.createPC(args, new VirtualClock());
+
+		// each machine counts down once, when its processor first gets to the reset entry
+		final CountDownLatch started = new CountDownLatch(2);
+		final Set<Processor> seen = Collections.newSetFromMap(new IdentityHashMap<Processor, Boolean>());
+		List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+		checkpoints.add(new Checkpoint(BIOS_RESET, new CheckpointCallback() {
+			public void checkpointPassed(Processor cpu) {
+				synchronized(seen) {
+					if(seen.add(cpu))
+						started.countDown();
+				}
+			}
+		}, true));
+		CheckpointProcessor.setCheckpoints(checkpoints, true);
+		try {
+			farm.start();
+			assertTrue(started.await(60, TimeUnit.SECONDS));
+		} finally {
+			farm.shutdown();
+			CheckpointProcessor.setCheckpoints(new ArrayList<Checkpoint>(), false);
+		}
+
+		assertNull(farm.getFailure(first));
+		assertNull(farm.getFailure(second));
+		assertTrue(first.getScheduler().getTotalInstructions() > 0);
+		assertTrue(second.getScheduler().getTotalInstructions() > 0);
+	}
+}
@@ -1,15 +1,19 @@
 package com.binaryorder.embeddedpc.pc;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
+import java.util.zip.ZipOutputStream;
 
 import junit.framework.TestCase;
 
 import org.jpc.emulator.PC;
 import org.jpc.emulator.processor.Processor;
 import org.jpc.j2se.VirtualClock;
+import org.jpc.support.DriveSet;
 import org.jpc.test.Checkpoint;
 import org.jpc.test.CheckpointCallback;
 import org.jpc.test.CheckpointProcessor;
@@ -381,6 +385,145 @@ public class IbmPCTest extends TestCase {
 		return cpList;
 	}
 
+	public void testFork() throws Exception {
+		String[] args = new String[] { "-fda", "mem:odin070.img", "-boot", "fda" };
+		IbmPC parent = IbmPC.createPC(args, new VirtualClock());
+		parent.start();
+		for(int i = 0; i < 100; i++)
+			parent.execute();
+		parent.stop();
+		parent.getPhysicalMemory().setByte(0x20000, (byte) 0x55);
+
+		try {
+			parent.fork(new VirtualClock(), parent.getDrives());
+			fail("Forked machine shares the drives of its parent");
+		} catch(IllegalArgumentException e) {
+		}
+
+		IbmPC child = parent.fork(new VirtualClock(), DriveSet.buildFromArgs(args));
+		assertEquals(parent.getProcessor().getInstructionPointer(), child.getProcessor().getInstructionPointer());
+		assertEquals(0x55, child.getPhysicalMemory().getByte(0x20000));
+
+		// each side sees only its own writes
+		child.getPhysicalMemory().setByte(0x20000, (byte) 0x66);
+		assertEquals(0x55, parent.getPhysicalMemory().getByte(0x20000));
+		parent.getPhysicalMemory().setByte(0x20000, (byte) 0x77);
+		assertEquals(0x66, child.getPhysicalMemory().getByte(0x20000));
+
+		// both run from the same RAM on threads of their own
+		final IbmPC[] machines = new IbmPC[] { parent, child };
+		final Throwable[] failures = new Throwable[machines.length];
+		Thread[] threads = new Thread[machines.length];
+		for(int i = 0; i < machines.length; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						machines[index].start();
+						for(int j = 0; j < 1000; j++)
+							machines[index].execute();
+						machines[index].stop();
+					} catch(Throwable t) {
+						failures[index] = t;
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for(int i = 0; i < machines.length; i++) {
+			threads[i].join(60000);
+			assertFalse(threads[i].isAlive());
+			assertNull(failures[i]);
+		}
+		assertTrue(child.getScheduler().getTotalInstructions() > 0);
+	}
+
+	public void testWiringRules() throws IOException {
+		IbmPC pc = IbmPC.createPC(new String[] { "-fda", "mem:odin070.img", "-boot", "fda" }, new VirtualClock());
+		assertEquals(0, pc.getWiring().getFallbacks());
+
+		// the update pass after a state load follows the same rules
+		File file = File.createTempFile("state", ".zip");
+		file.deleteOnExit();
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+		assertTrue(pc.saveState(zip));
+		zip.close();
+		pc.loadState(file);
+		assertEquals(0, pc.getWiring().getFallbacks());
+	}
+
+	public void testCheckpointChain() throws IOException {
+		String[] args = new String[] { "-fda", "mem:odin070.img", "-boot", "fda" };
+		IbmPC pc = IbmPC.createPC(args, new VirtualClock());
+		pc.enableCheckpoints();
+		pc.start();
+		File base = saveAfter(pc, 100, null);
+		pc.getPhysicalMemory().setByte(0x20000, (byte) 0x55);
+		File first = saveAfter(pc, 100, base);
+		pc.getPhysicalMemory().setByte(0x20001, (byte) 0x66);
+		File second = saveAfter(pc, 100, first);
+		pc.stop();
+
+		IbmPC loaded = IbmPC.createPC(args, new VirtualClock());
+		loaded.loadState(second);
+		Processor cpu = pc.getProcessor();
+		Processor loadedCPU = loaded.getProcessor();
+		assertEquals(cpu.getInstructionPointer(), loadedCPU.getInstructionPointer());
+		assertEquals(cpu.eax, loadedCPU.eax);
+		assertEquals(cpu.ebx, loadedCPU.ebx);
+		assertEquals(cpu.ecx, loadedCPU.ecx);
+		assertEquals(cpu.edx, loadedCPU.edx);
+		assertEquals(cpu.esi, loadedCPU.esi);
+		for(int address = 0; address < 0xa0000; address++)
+			assertEquals("RAM at " + Integer.toHexString(address), pc.getPhysicalMemory().getByte(address), loaded.getPhysicalMemory().getByte(address));
+	}
+
+	private File saveAfter(IbmPC pc, int blocks, File parent) throws IOException {
+		for(int i = 0; i < blocks; i++)
+			pc.execute();
+		File file = File.createTempFile("checkpoint", ".zip");
+		file.deleteOnExit();
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+		if(parent == null)
+			assertTrue(pc.saveState(zip));
+		else
+			assertTrue(pc.saveCheckpoint(zip, parent.getName()));
+		zip.close();
+		return file;
+	}
+
+	public void testCheckpointCycle() throws IOException {
+		IbmPC pc = IbmPC.createPC(new String[] { "-fda", "mem:odin070.img", "-boot", "fda" }, new VirtualClock());
+		pc.enableCheckpoints();
+		File file = File.createTempFile("checkpoint", ".zip");
+		file.deleteOnExit();
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+		assertTrue(pc.saveCheckpoint(zip, file.getName()));
+		zip.close();
+
+		try {
+			pc.loadState(file);
+			fail("checkpoint loaded with itself as parent");
+		} catch(IOException e) {
+		}
+	}
+
+	public void testCheckpointWithoutParent() throws IOException {
+		IbmPC pc = IbmPC.createPC(new String[] { "-fda", "mem:odin070.img", "-boot", "fda" }, new VirtualClock());
+		pc.enableCheckpoints();
+		File file = File.createTempFile("checkpoint", ".zip");
+		file.deleteOnExit();
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+		assertTrue(pc.saveCheckpoint(zip, "missing-parent.zip"));
+		zip.close();
+
+		try {
+			pc.loadState(file);
+			fail("checkpoint loaded without its parent");
+		} catch(IOException e) {
+		}
+	}
+
 	public void testBIOS81() throws IOException {
 		String[] args = new String[] { "-fda", "mem:odin070.img", "-boot", "fda" };
 		boolean running = true;
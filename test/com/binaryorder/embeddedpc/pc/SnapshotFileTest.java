@@ -0,0 +1,160 @@
+package com.binaryorder.embeddedpc.pc;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SnapshotFileTest extends TestCase {
+	// NUL and a character outside the BMP are where modified UTF-8 differs from UTF-8
+	private static final String ODD_NAME = "nul\u0000smile\ud83d\ude00";
+
+	private byte[] memory;
+	private byte[] noise;
+
+	protected void setUp() {
+		// a mostly empty memory image and a section that does not compress
+		memory = new byte[256 * 1024];
+		for(int i = 0; i < memory.length; i += 97)
+			memory[i] = (byte) i;
+		noise = new byte[1000];
+		new Random(1).nextBytes(noise);
+	}
+
+	private File write(int compression) throws IOException {
+		SnapshotFile.Writer writer = new SnapshotFile.Writer(compression);
+		writer.addSection("memory", memory);
+		writer.addSection("empty", new byte[0]);
+		writer.addSection("noise", noise);
+		writer.addSection(ODD_NAME, noise);
+		File f = File.createTempFile("snapshot", ".bin");
+		f.deleteOnExit();
+		writer.write(f);
+		return f;
+	}
+
+	private void checkLayout(File f, int compression) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			byte[] magic = new byte[8];
+			in.readFully(magic);
+			assertEquals("EC1840SS", new String(magic, "US-ASCII"));
+			assertEquals(1, in.readInt());
+			assertEquals(compression, in.readInt());
+			assertEquals(4, in.readInt());
+
+			String[] names = { "memory", "empty", "noise", ODD_NAME };
+			long end = 0;
+			for(int i = 0; i < names.length; i++) {
+				byte[] name = new byte[in.readUnsignedShort()];
+				in.readFully(name);
+				assertEquals(names[i], new String(name, "UTF-8"));
+				long offset = in.readLong();
+				int stored = in.readInt();
+				int raw = in.readInt();
+				assertEquals(0, offset % 64);
+				assertTrue(offset >= end);
+				end = offset + stored;
+				if(compression == SnapshotFile.COMPRESSION_NONE)
+					assertEquals(raw, stored);
+			}
+			assertEquals(f.length(), end);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void checkContents(File f) throws IOException {
+		SnapshotFile snapshot = new SnapshotFile(f);
+		assertTrue(snapshot.hasSection("memory"));
+		assertTrue(Arrays.equals(memory, snapshot.getSectionBytes("memory")));
+		assertTrue(Arrays.equals(noise, snapshot.getSectionBytes("noise")));
+		assertEquals(0, snapshot.getSectionBytes("empty").length);
+		assertEquals(noise.length, snapshot.getSection("noise").remaining());
+		assertTrue(Arrays.equals(noise, snapshot.getSectionBytes(ODD_NAME)));
+		assertFalse(snapshot.hasSection("missing"));
+		assertNull(snapshot.getSection("missing"));
+		assertNull(snapshot.getSectionBytes("missing"));
+	}
+
+	public void testUncompressed() throws IOException {
+		File f = write(SnapshotFile.COMPRESSION_NONE);
+		checkLayout(f, SnapshotFile.COMPRESSION_NONE);
+		checkContents(f);
+		assertTrue(f.length() > memory.length + noise.length);
+	}
+
+	public void testDeflate() throws IOException {
+		File f = write(SnapshotFile.COMPRESSION_FAST);
+		checkLayout(f, SnapshotFile.COMPRESSION_FAST);
+		checkContents(f);
+		assertTrue(f.length() < memory.length / 4);
+	}
+
+	public void testUnknownCompression() {
+		try {
+			new SnapshotFile.Writer(2);
+			fail("unknown compression accepted");
+		} catch(IllegalArgumentException e) {
+		}
+	}
+
+	public void testVersionMismatch() throws IOException {
+		File f = write(SnapshotFile.COMPRESSION_NONE);
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try {
+			file.seek(8);
+			file.writeInt(2);
+		} finally {
+			file.close();
+		}
+
+		try {
+			new SnapshotFile(f);
+			fail("snapshot of another version loaded");
+		} catch(IOException e) {
+		}
+	}
+
+	public void testTruncated() throws IOException {
+		File f = write(SnapshotFile.COMPRESSION_NONE);
+		long length = f.length();
+		// inside the last section, then inside the table
+		long[] cuts = { length - 10, 30 };
+		for(long cut : cuts) {
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			try {
+				file.setLength(cut);
+			} finally {
+				file.close();
+			}
+
+			try {
+				new SnapshotFile(f);
+				fail("snapshot cut at " + cut + " of " + length + " loaded");
+			} catch(IOException e) {
+			}
+		}
+	}
+
+	public void testNotASnapshot() throws IOException {
+		File f = write(SnapshotFile.COMPRESSION_NONE);
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try {
+			file.write('X');
+		} finally {
+			file.close();
+		}
+
+		try {
+			new SnapshotFile(f);
+			fail("file without the snapshot magic loaded");
+		} catch(IOException e) {
+		}
+	}
+}